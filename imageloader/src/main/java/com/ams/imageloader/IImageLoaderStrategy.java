@@ -2,8 +2,13 @@ package com.ams.imageloader;
 
 import android.content.Context;
 
+import com.ams.imageloader.download.DownloadItem;
+import com.ams.imageloader.download.DownloadPriority;
+import com.ams.imageloader.download.IBatchDownloadListener;
 import com.ams.imageloader.download.IDownloadListener;
 
+import java.util.List;
+
 /**
  * author: Ams
  * Date: 2019/4/11
@@ -41,6 +46,41 @@ public interface IImageLoaderStrategy {
      */
     void downloadOriginal(Context context, String url, String filePath, int what, IDownloadListener listener);
 
+    /**
+     * 按指定优先级下载原图
+     */
+    void downloadOriginal(Context context, String url, String filePath, int what, DownloadPriority priority, IDownloadListener listener);
+
+    /**
+     * 下载原图并校验MD5
+     */
+    void downloadOriginal(Context context, String url, String filePath, int what, DownloadPriority priority, String md5, IDownloadListener listener);
+
+    /**
+     * 调整排队中的下载任务的优先级
+     */
+    void setDownloadPriority(int what, DownloadPriority priority);
+
+    /**
+     * 暂停下载
+     */
+    void pauseDownload(int what);
+
+    /**
+     * 恢复已暂停的下载
+     */
+    void resumeDownload(int what);
+
+    /**
+     * 批量下载原图
+     */
+    void downloadOriginals(Context context, List<DownloadItem> items, int what, IBatchDownloadListener listener);
+
+    /**
+     * 取消批量下载
+     */
+    void cancelBatchDownload(int what);
+
     /**
      * 取消下载
      */
@@ -2,10 +2,15 @@ package com.ams.imageloader;
 
 import android.content.Context;
 
+import com.ams.imageloader.download.DownloadItem;
+import com.ams.imageloader.download.DownloadPriority;
+import com.ams.imageloader.download.IBatchDownloadListener;
 import com.ams.imageloader.download.IDownloadListener;
 import com.ams.imageloader.glide.GlideImageLoader;
 import com.bumptech.glide.load.model.GlideUrl;
 
+import java.util.List;
+
 /**
  * author: Ams
  * Date: 2019/4/11
@@ -98,13 +103,87 @@ public class ImageLoader {
      * @param url      原图下载地址
      * @param filePath 图片存储地址
      * @param what     请求标记
-     * @param listener 下载监听
+     * @param listener 下载监听，实现IDownloadSpeedListener可同时获取下载速度和剩余时间
      */
     public void downloadOriginal(Context context, String url, String filePath, int what, IDownloadListener listener) {
         checkNotNull();
         loader.downloadOriginal(context, url, filePath, what, listener);
     }
 
+    /**
+     * 按指定优先级下载原图，用户主动保存的优先于预加载的，屏幕内的优先于屏幕外的
+     *
+     * @param url      原图下载地址
+     * @param filePath 图片存储地址
+     * @param what     请求标记
+     * @param priority 下载优先级
+     * @param listener 下载监听，实现IDownloadSpeedListener可同时获取下载速度和剩余时间
+     */
+    public void downloadOriginal(Context context, String url, String filePath, int what, DownloadPriority priority, IDownloadListener listener) {
+        checkNotNull();
+        loader.downloadOriginal(context, url, filePath, what, priority, listener);
+    }
+
+    /**
+     * 下载原图并校验MD5，不一致时回调onFailed，不会把损坏的文件当作成功
+     *
+     * @param url      原图下载地址
+     * @param filePath 图片存储地址
+     * @param what     请求标记
+     * @param priority 下载优先级
+     * @param md5      原图的MD5（十六进制）
+     * @param listener 下载监听
+     */
+    public void downloadOriginal(Context context, String url, String filePath, int what, DownloadPriority priority, String md5, IDownloadListener listener) {
+        checkNotNull();
+        loader.downloadOriginal(context, url, filePath, what, priority, md5, listener);
+    }
+
+    /**
+     * 调整排队中的图片下载的优先级，如图片滑出屏幕时降低优先级
+     */
+    public void setDownloadPriority(int what, DownloadPriority priority) {
+        checkNotNull();
+        loader.setDownloadPriority(what, priority);
+    }
+
+    /**
+     * 暂停图片下载，已下载的部分保留，恢复时从暂停的位置继续
+     * 同一地址的多次下载是合并的，会一起暂停
+     */
+    public void pauseDownload(int what) {
+        checkNotNull();
+        loader.pauseDownload(what);
+    }
+
+    /**
+     * 恢复已暂停的图片下载
+     */
+    public void resumeDownload(int what) {
+        checkNotNull();
+        loader.resumeDownload(what);
+    }
+
+    /**
+     * 批量下载原图，同时下载的数量有限制，所有回调都在主线程
+     *
+     * @param items    下载列表
+     * @param what     批量下载的请求标记
+     * @param listener 批量下载监听，回调整体进度、每一项的结果和全部结束
+     */
+    public void downloadOriginals(Context context, List<DownloadItem> items, int what, IBatchDownloadListener listener) {
+        checkNotNull();
+        loader.downloadOriginals(context, items, what, listener);
+    }
+
+    /**
+     * 取消批量下载，已开始的项一并取消
+     */
+    public void cancelBatchDownload(int what) {
+        checkNotNull();
+        loader.cancelBatchDownload(what);
+    }
+
     /**
      * 取消单张图片下载
      */
@@ -47,6 +47,8 @@ public class ImageLoaderOptions {
     public DiskCacheStrategy diskCacheStrategy = DiskCacheStrategy.DEFAULT;
     public ILoaderListener loaderListener; // 加载结果监听器
     public IProgressListener progressListener; // 加载进度监听器
+    public long sizeHint;              // 预估的图片大小，响应没有长度时用于估算进度
+    public boolean progressivePreview; // 渐进式JPEG加载过程中显示预览
 
     public ImageLoaderOptions(GlideUrl glideUrl) {
         this.glideUrl = glideUrl;
@@ -110,6 +112,22 @@ public class ImageLoaderOptions {
         return this;
     }
 
+    /**
+     * 预估的图片大小（如接口返回的文件大小），分块传输的响应没有长度时按此估算进度
+     */
+    public ImageLoaderOptions sizeHint(long sizeHint) {
+        this.sizeHint = sizeHint;
+        return this;
+    }
+
+    /**
+     * 渐进式JPEG在加载过程中先显示低分辨率的预览，慢速网络下更快看到图片，其它格式不受影响
+     */
+    public ImageLoaderOptions progressivePreview() {
+        this.progressivePreview = true;
+        return this;
+    }
+
     public ImageLoaderOptions crossFade() {
         this.crossFade = true;
         return this;
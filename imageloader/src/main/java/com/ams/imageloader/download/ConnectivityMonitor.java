@@ -0,0 +1,61 @@
+package com.ams.imageloader.download;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * author: Ams
+ * Date: 2019/5/27
+ * Description: 网络状态监听，没有网络时下载任务等待，网络恢复后继续
+ */
+class ConnectivityMonitor extends BroadcastReceiver {
+
+    interface Listener {
+        /**
+         * 网络由断开变为连接，在主线程回调
+         */
+        void onConnected();
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private volatile boolean connected;
+
+    ConnectivityMonitor(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        this.connected = checkConnected();
+        this.context.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        boolean wasConnected = connected;
+        connected = checkConnected();
+        if (connected && !wasConnected) {
+            listener.onConnected();
+        }
+    }
+
+    private boolean checkConnected() {
+        try {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (cm == null) return true;
+            NetworkInfo info = cm.getActiveNetworkInfo();
+            return info != null && info.isConnected();
+        } catch (SecurityException e) {
+            // 没有网络状态权限时视为一直有网络
+            e.printStackTrace();
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+package com.ams.imageloader.download;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * author: Ams
+ * Date: 2019/5/17
+ * Description: 批量下载
+ * 同一时间最多下载parallelism项，每项通过IItemDownloader下载（图片加载库已有缓存的直接导出），
+ * 汇总字节数和完成数后通过一个监听回调，可以用一个请求码取消整批下载
+ */
+public class DownloadBatch {
+
+    private static final int DEFAULT_PARALLELISM = 4;
+
+    private static final SparseArray<DownloadBatch> BATCHES = new SparseArray<>();
+    // 批量下载内部每项使用的请求码，从-1开始递减，避免和调用方的请求码冲突
+    private static final AtomicInteger ITEM_WHAT = new AtomicInteger();
+    private static volatile int parallelism = DEFAULT_PARALLELISM;
+
+    private final Context context;
+    private final IItemDownloader downloader;
+    private final List<DownloadItem> items;
+    private final int what;
+    private final IBatchDownloadListener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final int[] itemWhats;
+    private final long[] itemDownloaded;
+    private final long[] itemTotal;
+    private int nextIndex;
+    private int running;
+    private int successCount;
+    private int failedCount;
+    private boolean canceled;
+
+    private DownloadBatch(Context context, IItemDownloader downloader, List<DownloadItem> items, int what,
+                          IBatchDownloadListener listener) {
+        this.context = context.getApplicationContext();
+        this.downloader = downloader;
+        this.items = new ArrayList<>(items);
+        this.what = what;
+        this.listener = listener;
+        this.itemWhats = new int[items.size()];
+        this.itemDownloaded = new long[items.size()];
+        this.itemTotal = new long[items.size()];
+    }
+
+    /**
+     * 设置批量下载同时进行的项数
+     */
+    public static void setParallelism(int parallelism) {
+        DownloadBatch.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * 开始批量下载
+     *
+     * @param downloader 每一项的下载方式
+     * @param items      下载列表
+     * @param what       请求码，用于取消整批下载
+     * @param listener   批量下载监听
+     */
+    public static void start(Context context, IItemDownloader downloader, List<DownloadItem> items, int what,
+                             IBatchDownloadListener listener) {
+        DownloadBatch batch = new DownloadBatch(context, downloader, items, what, listener);
+        synchronized (BATCHES) {
+            DownloadBatch old = BATCHES.get(what);
+            if (old != null) old.cancel();
+            BATCHES.put(what, batch);
+        }
+        if (batch.items.isEmpty()) {
+            batch.postFinish();
+            return;
+        }
+        batch.launchNext();
+    }
+
+    /**
+     * 取消整批下载，已开始的项会被取消，未开始的项不再下载
+     */
+    public static void cancel(int what) {
+        DownloadBatch batch;
+        synchronized (BATCHES) {
+            batch = BATCHES.get(what);
+            BATCHES.remove(what);
+        }
+        if (batch != null) batch.cancel();
+    }
+
+    /**
+     * 取消所有批量下载
+     */
+    public static void cancelAll() {
+        List<DownloadBatch> batches = new ArrayList<>();
+        synchronized (BATCHES) {
+            for (int i = 0; i < BATCHES.size(); i++) {
+                batches.add(BATCHES.valueAt(i));
+            }
+            BATCHES.clear();
+        }
+        for (DownloadBatch batch : batches) {
+            batch.cancel();
+        }
+    }
+
+    private void cancel() {
+        List<Integer> runningWhats = new ArrayList<>();
+        synchronized (this) {
+            if (canceled) return;
+            canceled = true;
+            for (int i = 0; i < nextIndex; i++) {
+                if (itemWhats[i] != 0) runningWhats.add(itemWhats[i]);
+            }
+        }
+        for (int itemWhat : runningWhats) {
+            downloader.cancel(itemWhat);
+        }
+    }
+
+    private void launchNext() {
+        while (true) {
+            final int index;
+            final int itemWhat;
+            synchronized (this) {
+                if (canceled || running >= parallelism || nextIndex >= items.size()) return;
+                index = nextIndex++;
+                itemWhat = ITEM_WHAT.decrementAndGet();
+                itemWhats[index] = itemWhat;
+                running++;
+            }
+            DownloadItem item = items.get(index);
+            // 下载任务同步登记，已有缓存的项在下载器的线程导出，不阻塞当前线程
+            downloader.download(context, item.url, item.filePath, itemWhat, new ItemListener(index));
+            // 出锁之后、登记之前整批被取消时，cancel中的取消找不到这一项，这里补上
+            if (isCanceled()) downloader.cancel(itemWhat);
+        }
+    }
+
+    private synchronized boolean isCanceled() {
+        return canceled;
+    }
+
+    private void onItemDone(final int index, final String filePath, final String msg) {
+        final boolean allDone;
+        synchronized (this) {
+            if (canceled) return;
+            itemWhats[index] = 0;
+            running--;
+            if (filePath != null) {
+                // 字节数已由完成前的onSpeed计入，已有缓存直接导出的项也会收到
+                successCount++;
+            } else {
+                failedCount++;
+            }
+            allDone = successCount + failedCount == items.size();
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCanceled() || listener == null) return;
+                if (filePath != null) {
+                    listener.onItemFinish(what, index, filePath);
+                } else {
+                    listener.onItemFailed(what, index, msg);
+                }
+            }
+        });
+        postProgress();
+        if (allDone) {
+            synchronized (BATCHES) {
+                if (BATCHES.get(what) == this) BATCHES.remove(what);
+            }
+            postFinish();
+        } else {
+            launchNext();
+        }
+    }
+
+    private void postProgress() {
+        if (listener == null) return;
+        long downloaded = 0;
+        long total = 0;
+        final int finished;
+        synchronized (this) {
+            for (int i = 0; i < items.size(); i++) {
+                downloaded += itemDownloaded[i];
+                total += itemTotal[i];
+            }
+            finished = successCount + failedCount;
+        }
+        final long downloadedBytes = downloaded;
+        final long totalBytes = total;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCanceled()) return;
+                listener.onProgress(what, downloadedBytes, totalBytes, finished, items.size());
+            }
+        });
+    }
+
+    private void postFinish() {
+        if (listener == null) return;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCanceled()) return;
+                int success;
+                int failed;
+                synchronized (DownloadBatch.this) {
+                    success = successCount;
+                    failed = failedCount;
+                }
+                listener.onFinish(what, success, failed);
+            }
+        });
+    }
+
+    /**
+     * 单项下载监听，只用来汇总，下载进度由下载器按间隔回调，不会过于频繁
+     */
+    private class ItemListener implements IDownloadSpeedListener {
+
+        private final int index;
+
+        ItemListener(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onProgress(int what, int progress) {
+            // 单项的百分比不参与汇总，整批进度按onSpeed中的字节数计算
+        }
+
+        @Override
+        public void onSpeed(int what, long downloadedBytes, long totalBytes, long bytesPerSecond, long remainingTime) {
+            synchronized (DownloadBatch.this) {
+                if (canceled) return;
+                itemDownloaded[index] = downloadedBytes;
+                itemTotal[index] = Math.max(totalBytes, 0);
+            }
+            postProgress();
+        }
+
+        @Override
+        public void onFinish(int what, String filePath) {
+            onItemDone(index, filePath, null);
+        }
+
+        @Override
+        public void onFailed(int what, String msg) {
+            onItemDone(index, null, msg);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.ams.imageloader.download;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * author: Ams
+ * Date: 2019/5/15
+ * Description: 下载缓冲区池
+ * 缓冲区按16K-256K分为几档，下载时根据实测速度选择大小，让每次写文件约为100ms的数据量，
+ * 网速快时减少写文件的系统调用次数，网速慢时不占用过多内存；缓冲区用完归还，下载循环中不再分配内存
+ */
+class DownloadBufferPool {
+
+    static final int MIN_SIZE = 16 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+    private static final int TARGET_FILL_TIME = 100;   // 期望填满一次缓冲区的时间，单位毫秒
+    private static final int MAX_POOLED_PER_SIZE = 4;
+
+    // 每档一个队列，下标为 log2(size / MIN_SIZE)
+    private static final ArrayDeque<ByteBuffer>[] POOLS = createPools();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<ByteBuffer>[] createPools() {
+        int count = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+        ArrayDeque<ByteBuffer>[] pools = new ArrayDeque[count];
+        for (int i = 0; i < count; i++) {
+            pools[i] = new ArrayDeque<>();
+        }
+        return pools;
+    }
+
+    private DownloadBufferPool() {
+    }
+
+    /**
+     * 获取size大小的缓冲区，size需为sizeFor返回的档位
+     * 使用堆内存缓冲区，Android上FileChannel写堆内存缓冲区时直接使用数组，不会再复制一次
+     */
+    static ByteBuffer acquire(int size) {
+        ArrayDeque<ByteBuffer> pool = POOLS[indexOf(size)];
+        synchronized (pool) {
+            ByteBuffer buffer = pool.poll();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+    static void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        ArrayDeque<ByteBuffer> pool = POOLS[indexOf(buffer.capacity())];
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED_PER_SIZE) {
+                pool.offer(buffer);
+            }
+        }
+    }
+
+    /**
+     * 根据上一次填满缓冲区读到的字节数和耗时，计算下一次应使用的缓冲区大小
+     */
+    static int sizeFor(int bytesRead, long elapsedMillis) {
+        long target = bytesRead * TARGET_FILL_TIME / Math.max(elapsedMillis, 1);
+        int size = MIN_SIZE;
+        while (size < MAX_SIZE && size < target) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int indexOf(int size) {
+        return Integer.numberOfTrailingZeros(size / MIN_SIZE);
+    }
+
+}
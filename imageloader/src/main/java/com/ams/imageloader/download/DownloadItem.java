@@ -0,0 +1,18 @@
+package com.ams.imageloader.download;
+
+/**
+ * author: Ams
+ * Date: 2019/5/17
+ * Description: 批量下载中的一项
+ */
+public class DownloadItem {
+
+    public final String url;       // 原图下载地址
+    public final String filePath;  // 图片存储地址
+
+    public DownloadItem(String url, String filePath) {
+        this.url = url;
+        this.filePath = filePath;
+    }
+
+}
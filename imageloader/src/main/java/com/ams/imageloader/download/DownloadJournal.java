@@ -0,0 +1,281 @@
+package com.ams.imageloader.download;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * author: Ams
+ * Date: 2019/5/8
+ * Description: 下载日志，持久化记录每个下载任务的地址、校验信息、总长度和已确认写入的字节区间，
+ * 进程被杀后也能据此续传，不需要重新探测文件长度
+ * 下载中的数据写在保存地址旁的临时文件中，日志同时用于清理过期的临时文件
+ */
+class DownloadJournal {
+
+    private static final String JOURNAL_DIR = "download_journal";
+    private static final long SAVE_INTERVAL = 1000; // 下载过程中保存日志的最小间隔
+    private static final long STALE_TIME = 7 * 24 * 60 * 60 * 1000L; // 超过此时间未更新的日志和临时文件被清理
+    private static final String TEMP_SUFFIX = ".part";
+
+    private static final String KEY_PATH = "path";
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_SEGMENTS = "segments";
+    private static final String KEY_RESUMABLE = "resumable";
+
+    /**
+     * 文件中的一段字节区间[start, end]，downloaded为从start开始已确认写入的长度
+     * synced为其中已刷到磁盘的长度，日志只记录这部分，断电后续传不会信任未落盘的数据
+     */
+    static class Segment {
+        final long start;
+        final long end;           // 长度未知时为-1，读到流结束为止
+        volatile long downloaded;
+        volatile long synced;
+
+        Segment(long start, long end, long downloaded) {
+            this.start = start;
+            this.end = end;
+            this.downloaded = downloaded;
+            this.synced = downloaded;
+        }
+
+        long position() {
+            return start + downloaded;
+        }
+
+        boolean isComplete() {
+            return end >= 0 && start + downloaded > end;
+        }
+    }
+
+    final String url;
+    final String eTag;
+    final String lastModified;
+    final long contentLength;
+    final List<Segment> segments;
+    final boolean resumable;      // 需要知道总长度且服务器支持Range才能续传
+    private final String filePath;
+    private final File journalFile;
+    private long lastSaveTime;
+
+    private DownloadJournal(File journalFile, String filePath, String url, String eTag, String lastModified,
+                            long contentLength, List<Segment> segments, boolean resumable) {
+        this.journalFile = journalFile;
+        this.filePath = filePath;
+        this.url = url;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.contentLength = contentLength;
+        this.segments = Collections.unmodifiableList(segments);
+        this.resumable = resumable;
+    }
+
+    /**
+     * 根据远程文件信息新建日志，并按segmentCount均分字节区间
+     */
+    static DownloadJournal create(Context context, String filePath, String url, RemoteInfo remoteInfo, int segmentCount) {
+        List<Segment> segments = new ArrayList<>();
+        long contentLength = remoteInfo.contentLength;
+        if (contentLength <= 0 || segmentCount <= 1) {
+            segments.add(new Segment(0, contentLength > 0 ? contentLength - 1 : -1, 0));
+        } else {
+            long segmentLength = contentLength / segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * segmentLength;
+                long end = i == segmentCount - 1 ? contentLength - 1 : start + segmentLength - 1;
+                segments.add(new Segment(start, end, 0));
+            }
+        }
+        return new DownloadJournal(getJournalFile(context, filePath), filePath, url,
+                remoteInfo.eTag, remoteInfo.lastModified, contentLength, segments,
+                contentLength > 0 && remoteInfo.acceptRanges);
+    }
+
+    /**
+     * 读取文件对应的日志，不存在或已损坏时返回null
+     */
+    static DownloadJournal load(Context context, String filePath) {
+        File journalFile = getJournalFile(context, filePath);
+        if (!journalFile.exists()) return null;
+        Properties properties = new Properties();
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(journalFile);
+            properties.load(is);
+            if (!filePath.equals(properties.getProperty(KEY_PATH))) return null;
+            List<Segment> segments = new ArrayList<>();
+            for (String segment : properties.getProperty(KEY_SEGMENTS, "").split(",")) {
+                String[] values = segment.split(":");
+                if (values.length != 3) return null;
+                segments.add(new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]),
+                        Long.parseLong(values[2])));
+            }
+            return new DownloadJournal(journalFile, filePath, properties.getProperty(KEY_URL),
+                    properties.getProperty(KEY_ETAG), properties.getProperty(KEY_LAST_MODIFIED),
+                    Long.parseLong(properties.getProperty(KEY_LENGTH)), segments,
+                    Boolean.parseBoolean(properties.getProperty(KEY_RESUMABLE, "true")));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            journalFile.delete();
+            return null;
+        } finally {
+            try {
+                if (is != null) is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 下载中的临时文件，与保存地址在同一目录，完成后原子重命名为保存地址
+     */
+    static File getTempFile(String filePath) {
+        return new File(filePath + TEMP_SUFFIX);
+    }
+
+    /**
+     * 清理过期或临时文件已不存在的日志，以及过期日志对应的临时文件
+     * 不可续传的下载也会记录日志，进程被杀后残留的临时文件同样能被清理
+     */
+    static void gc(Context context) {
+        File dir = new File(context.getCacheDir(), JOURNAL_DIR);
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long now = System.currentTimeMillis();
+        for (File journalFile : files) {
+            boolean stale = now - journalFile.lastModified() > STALE_TIME;
+            if (journalFile.getName().endsWith(".tmp")) {
+                if (stale) journalFile.delete();
+                continue;
+            }
+            String filePath = readPath(journalFile);
+            if (filePath == null) {
+                journalFile.delete();
+                continue;
+            }
+            File tempFile = getTempFile(filePath);
+            if (stale || !tempFile.exists()) {
+                tempFile.delete();
+                journalFile.delete();
+            }
+        }
+    }
+
+    private static String readPath(File journalFile) {
+        Properties properties = new Properties();
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(journalFile);
+            properties.load(is);
+            return properties.getProperty(KEY_PATH);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (is != null) is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static File getJournalFile(Context context, String filePath) {
+        File dir = new File(context.getCacheDir(), JOURNAL_DIR);
+        String name = Integer.toHexString(filePath.hashCode()) + "_" + new File(filePath).getName();
+        return new File(dir, name);
+    }
+
+    /**
+     * If-Range使用的校验值，弱ETag不能用于If-Range
+     */
+    String getValidator() {
+        if (eTag != null && !eTag.startsWith("W/")) return eTag;
+        return lastModified;
+    }
+
+    long getDownloadedLength() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.downloaded;
+        }
+        return total;
+    }
+
+    /**
+     * 下载过程中定时保存，避免每写一块数据都写一次磁盘
+     * 保存前先把本段已写入的数据刷到磁盘，各段由各自的线程刷盘，不在日志的锁内等待
+     */
+    void saveIfNeeded(FileChannel channel, Segment segment) throws IOException {
+        synchronized (this) {
+            if (SystemClock.elapsedRealtime() - lastSaveTime < SAVE_INTERVAL) return;
+        }
+        sync(channel, segment);
+        save();
+    }
+
+    /**
+     * 把本段已写入的数据刷到磁盘，之后保存的日志才包含这部分
+     */
+    static void sync(FileChannel channel, Segment segment) throws IOException {
+        long downloaded = segment.downloaded;
+        channel.force(false);
+        segment.synced = downloaded;
+    }
+
+    /**
+     * 先写临时文件再重命名，保证日志本身不会写坏
+     * 不可续传的下载也保存，只用于清理残留的临时文件
+     */
+    synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_PATH, filePath);
+        properties.setProperty(KEY_URL, url);
+        if (eTag != null) properties.setProperty(KEY_ETAG, eTag);
+        if (lastModified != null) properties.setProperty(KEY_LAST_MODIFIED, lastModified);
+        properties.setProperty(KEY_LENGTH, String.valueOf(contentLength));
+        StringBuilder builder = new StringBuilder();
+        for (Segment segment : segments) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(segment.start).append(':').append(segment.end).append(':').append(segment.synced);
+        }
+        properties.setProperty(KEY_SEGMENTS, builder.toString());
+        properties.setProperty(KEY_RESUMABLE, String.valueOf(resumable));
+
+        File dir = journalFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("create journal dir failed");
+        }
+        File tmp = new File(dir, journalFile.getName() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            properties.store(os, null);
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(journalFile)) {
+            throw new IOException("save journal failed");
+        }
+        lastSaveTime = SystemClock.elapsedRealtime();
+    }
+
+    synchronized void delete() {
+        journalFile.delete();
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.ams.imageloader.download;
+
+/**
+ * author: Ams
+ * Date: 2019/6/3
+ * Description: 单个下载任务的性能数据，时间单位为毫秒，没有发生的阶段为0（首字节时间未知时为-1）
+ * 连接相关的时间是任务所有请求（探测、各分段、重试）的累计值，连接复用时为0
+ */
+public class DownloadMetrics {
+
+    public final String url;
+    public final int what;
+    public final boolean success;
+    public final long queueWaitTime;       // 在调度队列中等待的时间，包括重试前的排队
+    public final long dnsTime;             // DNS解析
+    public final long connectTime;         // 建立连接，包括TLS握手
+    public final long tlsTime;             // TLS握手
+    public final long timeToFirstByte;     // 第一个下载请求从发出到收到响应头
+    public final long transferTime;        // 各次执行的累计时间，不含排队、重试退避和暂停
+    public final long bytesTransferred;    // 本次实际从网络（或HTTP缓存）读取的字节数
+    public final long bytesResumed;        // 开始时已下载、续传跳过的字节数
+    public final long throughput;          // 平均速度，字节/秒
+    public final int retryCount;
+    public final boolean fromCache;        // 文件信息来自HTTP缓存
+
+    DownloadMetrics(String url, int what, boolean success, long queueWaitTime, long dnsTime, long connectTime,
+                    long tlsTime, long timeToFirstByte, long transferTime, long bytesTransferred,
+                    long bytesResumed, int retryCount, boolean fromCache) {
+        this.url = url;
+        this.what = what;
+        this.success = success;
+        this.queueWaitTime = queueWaitTime;
+        this.dnsTime = dnsTime;
+        this.connectTime = connectTime;
+        this.tlsTime = tlsTime;
+        this.timeToFirstByte = timeToFirstByte;
+        this.transferTime = transferTime;
+        this.bytesTransferred = bytesTransferred;
+        this.bytesResumed = bytesResumed;
+        this.throughput = transferTime > 0 ? bytesTransferred * 1000 / transferTime : 0;
+        this.retryCount = retryCount;
+        this.fromCache = fromCache;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadMetrics{" +
+                "url='" + url + '\'' +
+                ", what=" + what +
+                ", success=" + success +
+                ", queueWaitTime=" + queueWaitTime +
+                ", dnsTime=" + dnsTime +
+                ", connectTime=" + connectTime +
+                ", tlsTime=" + tlsTime +
+                ", timeToFirstByte=" + timeToFirstByte +
+                ", transferTime=" + transferTime +
+                ", bytesTransferred=" + bytesTransferred +
+                ", bytesResumed=" + bytesResumed +
+                ", throughput=" + throughput +
+                ", retryCount=" + retryCount +
+                ", fromCache=" + fromCache +
+                '}';
+    }
+
+}
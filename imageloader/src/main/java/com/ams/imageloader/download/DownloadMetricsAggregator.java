@@ -0,0 +1,100 @@
+package com.ams.imageloader.download;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * author: Ams
+ * Date: 2019/6/3
+ * Description: 在内存中保留最近若干个任务的性能数据，汇总后输出，便于上报或调试时查看
+ */
+public class DownloadMetricsAggregator implements DownloadMetricsListener {
+
+    private static final int DEFAULT_WINDOW_SIZE = 100;
+
+    private final int windowSize;
+    private final ArrayDeque<DownloadMetrics> window = new ArrayDeque<>();
+
+    public DownloadMetricsAggregator() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize 保留的任务数，超过时丢弃最早的
+     */
+    public DownloadMetricsAggregator(int windowSize) {
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    @Override
+    public synchronized void onMetrics(DownloadMetrics metrics) {
+        if (window.size() >= windowSize) {
+            window.pollFirst();
+        }
+        window.addLast(metrics);
+    }
+
+    /**
+     * 最近任务的性能数据，从早到晚
+     */
+    public synchronized List<DownloadMetrics> getSnapshot() {
+        return new ArrayList<>(window);
+    }
+
+    public synchronized void clear() {
+        window.clear();
+    }
+
+    /**
+     * 汇总最近任务的性能数据：成功率、字节数、各阶段平均耗时、首字节时间和速度的中位数与P90
+     */
+    public String dump() {
+        List<DownloadMetrics> snapshot = getSnapshot();
+        int count = snapshot.size();
+        if (count == 0) return "DownloadMetrics: no data";
+        int success = 0;
+        int retries = 0;
+        long bytesTransferred = 0;
+        long bytesResumed = 0;
+        long queueWait = 0;
+        long dns = 0;
+        long connect = 0;
+        long tls = 0;
+        long[] ttfb = new long[count];
+        long[] throughput = new long[count];
+        int ttfbCount = 0;
+        int throughputCount = 0;
+        for (DownloadMetrics metrics : snapshot) {
+            if (metrics.success) success++;
+            retries += metrics.retryCount;
+            bytesTransferred += metrics.bytesTransferred;
+            bytesResumed += metrics.bytesResumed;
+            queueWait += metrics.queueWaitTime;
+            dns += metrics.dnsTime;
+            connect += metrics.connectTime;
+            tls += metrics.tlsTime;
+            if (metrics.timeToFirstByte >= 0) ttfb[ttfbCount++] = metrics.timeToFirstByte;
+            if (metrics.success && metrics.bytesTransferred > 0) throughput[throughputCount++] = metrics.throughput;
+        }
+        return String.format(Locale.US,
+                "DownloadMetrics: tasks=%d success=%d failed=%d retries=%d transferred=%dB resumed=%dB "
+                        + "avg(queue=%dms dns=%dms connect=%dms tls=%dms) "
+                        + "ttfb(p50=%dms p90=%dms) throughput(p50=%dB/s p90=%dB/s)",
+                count, success, count - success, retries, bytesTransferred, bytesResumed,
+                queueWait / count, dns / count, connect / count, tls / count,
+                percentile(ttfb, ttfbCount, 50), percentile(ttfb, ttfbCount, 90),
+                percentile(throughput, throughputCount, 50), percentile(throughput, throughputCount, 90));
+    }
+
+    private static long percentile(long[] values, int count, int percent) {
+        if (count == 0) return -1;
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percent / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+}
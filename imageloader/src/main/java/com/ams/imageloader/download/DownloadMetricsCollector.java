@@ -0,0 +1,186 @@
+package com.ams.imageloader.download;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * author: Ams
+ * Date: 2019/6/3
+ * Description: 收集单个下载任务的性能数据
+ * 任务的请求以收集器（探测请求以{@link #probeTag}）作为tag，OkHttp的EventListener据此记录各阶段耗时
+ */
+class DownloadMetricsCollector {
+
+    /**
+     * 只为带有收集器tag的请求创建监听，其他请求（如Glide加载）不受影响
+     */
+    static final EventListener.Factory FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            Object tag = call.request().tag();
+            if (tag instanceof DownloadMetricsCollector) {
+                return ((DownloadMetricsCollector) tag).new CallListener(false);
+            } else if (tag instanceof ProbeTag) {
+                return ((ProbeTag) tag).collector.new CallListener(true);
+            }
+            return EventListener.NONE;
+        }
+    };
+
+    /**
+     * 探测请求的tag，探测的连接耗时计入任务，但不计首字节时间
+     */
+    static class ProbeTag {
+        final DownloadMetricsCollector collector;
+
+        ProbeTag(DownloadMetricsCollector collector) {
+            this.collector = collector;
+        }
+    }
+
+    final ProbeTag probeTag = new ProbeTag(this);
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private long queuedTime = -1;
+    private long queueWaitTime;
+    private long runStartTime = -1;    // 本次执行的开始时间，未在执行时为-1
+    private long activeTime;           // 之前各次执行的累计时间，不含排队、重试退避和暂停
+    private long dnsTime;
+    private long connectTime;
+    private long tlsTime;
+    private long timeToFirstByte = -1;
+    private long bytesResumed = -1;
+
+    synchronized void onQueued() {
+        queuedTime = SystemClock.elapsedRealtime();
+    }
+
+    synchronized void onStarted() {
+        long now = SystemClock.elapsedRealtime();
+        if (queuedTime >= 0) {
+            queueWaitTime += now - queuedTime;
+            queuedTime = -1;
+        }
+        runStartTime = now;
+    }
+
+    /**
+     * 本次执行结束（完成、失败、暂停或等待重试），之后的时间不计入传输时间
+     */
+    synchronized void onStopped() {
+        if (runStartTime < 0) return;
+        activeTime += SystemClock.elapsedRealtime() - runStartTime;
+        runStartTime = -1;
+    }
+
+    /**
+     * 第一次开始下载时已下载的字节数
+     */
+    synchronized void onResumed(long bytes) {
+        if (bytesResumed < 0) bytesResumed = bytes;
+    }
+
+    void onBytes(long bytes) {
+        bytesTransferred.addAndGet(bytes);
+    }
+
+    DownloadMetrics build(String url, int what, boolean success, int retryCount, boolean fromCache) {
+        synchronized (this) {
+            long transferTime = activeTime;
+            if (runStartTime >= 0) transferTime += SystemClock.elapsedRealtime() - runStartTime;
+            return new DownloadMetrics(url, what, success, queueWaitTime, dnsTime, connectTime, tlsTime,
+                    timeToFirstByte, transferTime, bytesTransferred.get(), Math.max(0, bytesResumed),
+                    retryCount, fromCache);
+        }
+    }
+
+    private synchronized void addDns(long time) {
+        dnsTime += time;
+    }
+
+    private synchronized void addConnect(long time) {
+        connectTime += time;
+    }
+
+    private synchronized void addTls(long time) {
+        tlsTime += time;
+    }
+
+    private synchronized void onFirstByte(long time) {
+        if (timeToFirstByte < 0) timeToFirstByte = time;
+    }
+
+    /**
+     * 单个请求的监听，同一个请求的事件在同一线程按顺序回调
+     */
+    private class CallListener extends EventListener {
+
+        private final boolean probe;
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long secureConnectStart;
+
+        CallListener(boolean probe) {
+            this.probe = probe;
+        }
+
+        @Override
+        public void callStart(Call call) {
+            callStart = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            dnsStart = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            addDns(SystemClock.elapsedRealtime() - dnsStart);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStart = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            secureConnectStart = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            addTls(SystemClock.elapsedRealtime() - secureConnectStart);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            addConnect(SystemClock.elapsedRealtime() - connectStart);
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol,
+                                  IOException ioe) {
+            addConnect(SystemClock.elapsedRealtime() - connectStart);
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            if (!probe) onFirstByte(SystemClock.elapsedRealtime() - callStart);
+        }
+    }
+
+}
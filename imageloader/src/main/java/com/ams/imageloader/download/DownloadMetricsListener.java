@@ -0,0 +1,12 @@
+package com.ams.imageloader.download;
+
+/**
+ * author: Ams
+ * Date: 2019/6/3
+ * Description: 下载性能数据监听，任务成功或最终失败时在下载线程回调，取消的任务不回调
+ */
+public interface DownloadMetricsListener {
+
+    void onMetrics(DownloadMetrics metrics);
+
+}
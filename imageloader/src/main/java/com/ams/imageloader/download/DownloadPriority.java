@@ -0,0 +1,15 @@
+package com.ams.imageloader.download;
+
+/**
+ * author: Ams
+ * Date: 2019/5/10
+ * Description: 下载优先级，从低到高排列
+ */
+public enum DownloadPriority {
+
+    PREFETCH,        // 预加载
+    OFFSCREEN,       // 不在屏幕内
+    VISIBLE,         // 在屏幕内
+    USER_INITIATED,  // 用户主动保存
+
+}
@@ -0,0 +1,188 @@
+package com.ams.imageloader.download;
+
+import android.os.SystemClock;
+
+import com.ams.imageloader.progress.ProgressInterceptor;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.CacheControl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * author: Ams
+ * Date: 2019/5/9
+ * Description: 远程文件信息探测，优先使用HEAD，服务器不支持HEAD时改用Range: bytes=0-0，
+ * 结果按地址缓存一段时间，重复保存同一张原图时不再发请求
+ */
+class DownloadProbe {
+
+    private static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_CACHE_SIZE = 64;
+
+    private volatile OkHttpClient client;
+    private final Map<String, CacheEntry> cache;
+    private volatile long ttl = DEFAULT_TTL;
+
+    private static class CacheEntry {
+        final RemoteInfo remoteInfo;
+        final long expireTime;
+
+        CacheEntry(RemoteInfo remoteInfo, long expireTime) {
+            this.remoteInfo = remoteInfo;
+            this.expireTime = expireTime;
+        }
+    }
+
+    DownloadProbe(OkHttpClient client) {
+        this.client = client;
+        // 按访问顺序淘汰最久未使用的地址
+        this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > MAX_CACHE_SIZE;
+            }
+        };
+    }
+
+    void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    void setClient(OkHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * 本地HTTP缓存中有这个地址时，用缓存的响应头作为文件信息，不发请求
+     * 缓存可能已过期，下载时由OkHttp带上If-None-Match/If-Modified-Since重新验证
+     */
+    RemoteInfo probeHttpCache(String url) {
+        if (client.cache() == null) return null;
+        Request request = new Request.Builder().url(url).cacheControl(CacheControl.FORCE_CACHE).build();
+        Response response = null;
+        try {
+            response = client.newCall(request).execute();
+            long contentLength = parseLong(response.header("Content-Length"));
+            // 没有缓存时返回504，压缩过的缓存长度与文件不一致
+            if (!response.isSuccessful() || contentLength < 0 || response.header("Content-Encoding") != null) {
+                return null;
+            }
+            boolean acceptRanges = "bytes".equalsIgnoreCase(response.header("Accept-Ranges"));
+            return new RemoteInfo(contentLength, acceptRanges, response.header("ETag"),
+                    response.header("Last-Modified"), true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (response != null) response.close();
+        }
+    }
+
+    /**
+     * 获取远程文件信息，优先使用缓存
+     *
+     * @param tag 请求的tag，用于收集性能数据
+     */
+    RemoteInfo probe(String url, Object tag) throws IOException {
+        RemoteInfo remoteInfo = getCached(url);
+        if (remoteInfo != null) return remoteInfo;
+
+        remoteInfo = probeByHead(url, tag);
+        if (remoteInfo == null) {
+            remoteInfo = probeByRange(url, tag);
+        }
+        if (remoteInfo == null) {
+            // 探测失败，长度未知，交给下载请求去报告真实的错误
+            return new RemoteInfo(-1, false, null, null);
+        }
+        synchronized (cache) {
+            cache.put(url, new CacheEntry(remoteInfo, SystemClock.elapsedRealtime() + ttl));
+        }
+        // 图片加载的响应没有长度时，用探测到的长度估算进度
+        ProgressInterceptor.setSizeHint(url, remoteInfo.contentLength);
+        return remoteInfo;
+    }
+
+    /**
+     * 只读取缓存，不发请求，缓存不存在或已过期时返回null
+     */
+    RemoteInfo getCached(String url) {
+        synchronized (cache) {
+            CacheEntry entry = cache.get(url);
+            if (entry == null) return null;
+            if (entry.expireTime < SystemClock.elapsedRealtime()) {
+                cache.remove(url);
+                return null;
+            }
+            return entry.remoteInfo;
+        }
+    }
+
+    /**
+     * 远程文件已变化时清除缓存
+     */
+    void invalidate(String url) {
+        synchronized (cache) {
+            cache.remove(url);
+        }
+    }
+
+    private RemoteInfo probeByHead(String url, Object tag) throws IOException {
+        // 长度需要与实际文件一致，不接受压缩编码
+        Request request = new Request.Builder().url(url).head().header("Accept-Encoding", "identity").tag(tag).build();
+        Response response = client.newCall(request).execute();
+        try {
+            long contentLength = parseLong(response.header("Content-Length"));
+            if (!response.isSuccessful() || contentLength < 0) {
+                // 部分服务器（如签名地址）不支持HEAD或不返回长度
+                return null;
+            }
+            boolean acceptRanges = "bytes".equalsIgnoreCase(response.header("Accept-Ranges"));
+            return new RemoteInfo(contentLength, acceptRanges, response.header("ETag"), response.header("Last-Modified"));
+        } finally {
+            response.close();
+        }
+    }
+
+    private RemoteInfo probeByRange(String url, Object tag) throws IOException {
+        // 部分请求不能用缓存的完整响应代替
+        Request request = new Request.Builder().url(url).header("Range", "bytes=0-0")
+                .cacheControl(CacheControl.FORCE_NETWORK).tag(tag).build();
+        Response response = client.newCall(request).execute();
+        try {
+            if (response.code() == 206) {
+                // Content-Range: bytes 0-0/总长度
+                String contentRange = response.header("Content-Range");
+                long contentLength = -1;
+                if (contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+                    contentLength = parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+                }
+                return new RemoteInfo(contentLength, contentLength > 0, response.header("ETag"),
+                        response.header("Last-Modified"));
+            } else if (response.isSuccessful()) {
+                // 不支持Range，返回了整个文件，只取长度
+                return new RemoteInfo(response.body().contentLength(), false, response.header("ETag"),
+                        response.header("Last-Modified"));
+            }
+            return null;
+        } finally {
+            response.close();
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
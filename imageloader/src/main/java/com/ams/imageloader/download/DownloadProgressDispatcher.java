@@ -0,0 +1,93 @@
+package com.ams.imageloader.download;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * author: Ams
+ * Date: 2019/5/14
+ * Description: 下载进度分发
+ * 下载线程每读一块数据只更新计数，百分比变化或距上次回调超过最小间隔时才向主线程发消息，
+ * 同一时间最多只有一条待处理的消息（复用自身作为Runnable），主线程执行时读取最新的进度
+ */
+class DownloadProgressDispatcher implements Runnable {
+
+    private static final float SPEED_SMOOTHING = 0.3f; // 速度平滑系数，越大越接近瞬时速度
+
+    private final DownloadTask task;
+    private final Handler mainHandler;
+    private final long contentLength;
+    private final long minInterval;
+
+    // 以下字段由下载线程在同步块中更新
+    private long downloadedBytes;
+    private int lastProgress = -1;
+    private long lastDispatchTime;
+    private long sampleBytes;
+    private long sampleTime;
+    private long bytesPerSecond;
+    private boolean pending;
+
+    DownloadProgressDispatcher(DownloadTask task, Handler mainHandler, long contentLength,
+                               long downloadedBytes, long minInterval) {
+        this.task = task;
+        this.mainHandler = mainHandler;
+        this.contentLength = contentLength;
+        this.downloadedBytes = downloadedBytes;
+        this.minInterval = minInterval;
+        this.sampleBytes = downloadedBytes;
+        this.sampleTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 下载线程写入数据后调用，分段下载时会被多个线程调用
+     */
+    synchronized void onBytesRead(long bytes) {
+        downloadedBytes += bytes;
+        long now = SystemClock.elapsedRealtime();
+        int progress = contentLength > 0 ? (int) (downloadedBytes * 100 / contentLength) : -1;
+        if (progress == lastProgress && now - lastDispatchTime < minInterval) return;
+        lastProgress = progress;
+        lastDispatchTime = now;
+        updateSpeed(now);
+        if (!pending) {
+            pending = true;
+            mainHandler.post(this);
+        }
+    }
+
+    private void updateSpeed(long now) {
+        long elapsed = now - sampleTime;
+        if (elapsed <= 0) return;
+        long speed = (downloadedBytes - sampleBytes) * 1000 / elapsed;
+        bytesPerSecond = bytesPerSecond == 0 ? speed : (long) (speed * SPEED_SMOOTHING + bytesPerSecond * (1 - SPEED_SMOOTHING));
+        sampleBytes = downloadedBytes;
+        sampleTime = now;
+    }
+
+    @Override
+    public void run() {
+        int progress;
+        long downloaded;
+        long speed;
+        long remainingTime;
+        synchronized (this) {
+            pending = false;
+            progress = lastProgress;
+            downloaded = downloadedBytes;
+            speed = bytesPerSecond;
+            remainingTime = contentLength > 0 && speed > 0 ? (contentLength - downloadedBytes) * 1000 / speed : -1;
+        }
+        for (DownloadTask.Subscriber subscriber : task.getSubscribers()) {
+            if (subscriber.listener == null) continue;
+            if (progress >= 0) {
+                subscriber.listener.onProgress(subscriber.what, progress);
+            }
+            if (subscriber.listener instanceof IDownloadSpeedListener) {
+                ((IDownloadSpeedListener) subscriber.listener).onSpeed(subscriber.what, downloaded,
+                        contentLength > 0 ? contentLength : -1, speed, remainingTime);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.ams.imageloader.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * author: Ams
+ * Date: 2019/5/20
+ * Description: 下载任务表，按地址和请求码两种方式索引，可在任意线程读写
+ * 任务结束时自动移除，不会随下载次数无限增长
+ */
+class DownloadRegistry {
+
+    private final ConcurrentHashMap<String, DownloadTask> tasksByUrl = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, DownloadTask> tasksByWhat = new ConcurrentHashMap<>();
+
+    /**
+     * 订阅同一地址正在进行的任务，没有可订阅的任务时返回null
+     */
+    DownloadTask join(String url, DownloadTask.Subscriber subscriber) {
+        while (true) {
+            DownloadTask running = tasksByUrl.get(url);
+            if (running == null) return null;
+            if (running.addSubscriber(subscriber)) {
+                tasksByWhat.put(subscriber.what, running);
+                return running;
+            }
+            // 任务已结束或已取消，移除后再查一次
+            tasksByUrl.remove(url, running);
+        }
+    }
+
+    /**
+     * 登记新任务，同一地址已被其他线程登记时返回false，需要重新订阅
+     */
+    boolean add(DownloadTask task) {
+        if (tasksByUrl.putIfAbsent(task.url, task) != null) return false;
+        tasksByWhat.put(task.what, task);
+        return true;
+    }
+
+    /**
+     * 没有正在进行的任务
+     */
+    boolean isEmpty() {
+        return tasksByUrl.isEmpty();
+    }
+
+    DownloadTask get(int what) {
+        return tasksByWhat.get(what);
+    }
+
+    /**
+     * 移除请求码的登记，返回对应的任务
+     */
+    DownloadTask remove(int what) {
+        return tasksByWhat.remove(what);
+    }
+
+    /**
+     * 移除任务及其所有订阅者的登记
+     */
+    void remove(DownloadTask task, List<DownloadTask.Subscriber> subscribers) {
+        tasksByUrl.remove(task.url, task);
+        for (DownloadTask.Subscriber subscriber : subscribers) {
+            tasksByWhat.remove(subscriber.what, task);
+        }
+    }
+
+    /**
+     * 移除所有登记，返回被移除的任务
+     */
+    List<DownloadTask> removeAll() {
+        List<DownloadTask> tasks = new ArrayList<>();
+        for (Map.Entry<String, DownloadTask> entry : tasksByUrl.entrySet()) {
+            if (tasksByUrl.remove(entry.getKey(), entry.getValue())) {
+                tasks.add(entry.getValue());
+            }
+        }
+        for (Map.Entry<Integer, DownloadTask> entry : tasksByWhat.entrySet()) {
+            tasksByWhat.remove(entry.getKey(), entry.getValue());
+        }
+        return tasks;
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.ams.imageloader.download;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+
+/**
+ * author: Ams
+ * Date: 2019/5/10
+ * Description: 下载调度器
+ * 按优先级排队（同优先级先进先出），限制同时下载的任务数和单个域名的并发数，
+ * 任务数根据CPU核数和当前网络类型决定，排队中的任务可以按what调整优先级
+ */
+public class DownloadScheduler {
+
+    private static final int DEFAULT_MAX_PER_HOST = 4;
+    private static final int MAX_SEGMENT_THREADS = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Comparator<Job> COMPARATOR = new Comparator<Job>() {
+        @Override
+        public int compare(Job o1, Job o2) {
+            if (o1.priority != o2.priority) {
+                return o2.priority.ordinal() - o1.priority.ordinal();
+            }
+            return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+        }
+    };
+
+    private static class Job {
+        final int what;
+        final Object owner;       // 提交者，同一提交者重复提交时合并
+        final String host;
+        final long sequence;
+        final Runnable runnable;
+        DownloadPriority priority;
+
+        Job(int what, Object owner, String host, DownloadPriority priority, long sequence, Runnable runnable) {
+            this.what = what;
+            this.owner = owner;
+            this.host = host;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final TreeSet<Job> readyQueue = new TreeSet<>(COMPARATOR);
+    private final Map<Integer, Job> queuedJobs = new HashMap<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private final ThreadPoolExecutor workerExecutor;
+    private final ThreadPoolExecutor segmentExecutor;
+    private int runningCount;
+    private int maxWorkers;
+    private int maxPerHost = DEFAULT_MAX_PER_HOST;
+    private long sequence;
+
+    private DownloadScheduler() {
+        // 并发数由调度器自己控制，线程池只负责复用线程
+        workerExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        // 分段线程不经过排队，线程用完时由任务线程自己执行，避免任务线程互相等待造成死锁
+        segmentExecutor = new ThreadPoolExecutor(0, MAX_SEGMENT_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+        maxWorkers = computeMaxWorkers(null);
+    }
+
+    private static final DownloadScheduler scheduler = new DownloadScheduler();
+
+    public static DownloadScheduler getInstance() {
+        return scheduler;
+    }
+
+    /**
+     * 设置单个域名同时下载的任务数
+     */
+    public void setMaxRequestsPerHost(int maxPerHost) {
+        synchronized (lock) {
+            this.maxPerHost = Math.max(1, maxPerHost);
+        }
+        promote();
+    }
+
+    /**
+     * 调整排队中任务的优先级，已开始的任务不受影响
+     */
+    public void setPriority(int what, DownloadPriority priority) {
+        synchronized (lock) {
+            Job job = queuedJobs.get(what);
+            if (job == null || job.priority == priority) return;
+            readyQueue.remove(job);
+            job.priority = priority;
+            readyQueue.add(job);
+        }
+        promote();
+    }
+
+    /**
+     * 排队中的任务优先级低于priority时提升到priority
+     */
+    void raisePriority(int what, DownloadPriority priority) {
+        synchronized (lock) {
+            Job job = queuedJobs.get(what);
+            if (job == null || job.priority.ordinal() >= priority.ordinal()) return;
+        }
+        setPriority(what, priority);
+    }
+
+    /**
+     * 根据当前网络类型重新计算同时下载的任务数
+     */
+    void updateConcurrency(Context context) {
+        int workers = computeMaxWorkers(context);
+        synchronized (lock) {
+            if (maxWorkers == workers) return;
+            maxWorkers = workers;
+        }
+        promote();
+    }
+
+    /**
+     * 提交任务，同一请求码已有排队中的任务时，与下载任务表的合并方式一致：
+     * 同一提交者的任务已在排队时不重复排队，按较高的优先级调度已排队的任务；
+     * 请求码被其他提交者占用时拒绝并返回false，已排队的任务不受影响
+     */
+    boolean submit(int what, Object owner, String url, DownloadPriority priority, Runnable runnable) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        String host = httpUrl != null ? httpUrl.host() : "";
+        synchronized (lock) {
+            Job queued = queuedJobs.get(what);
+            if (queued != null) {
+                if (queued.owner != owner) return false;
+                if (queued.priority.ordinal() < priority.ordinal()) {
+                    readyQueue.remove(queued);
+                    queued.priority = priority;
+                    readyQueue.add(queued);
+                }
+            } else {
+                Job job = new Job(what, owner, host, priority, sequence++, runnable);
+                readyQueue.add(job);
+                queuedJobs.put(what, job);
+            }
+        }
+        promote();
+        return true;
+    }
+
+    /**
+     * 移除排队中的任务，返回true时任务不会再执行，已开始的任务返回false
+     */
+    boolean remove(int what) {
+        synchronized (lock) {
+            Job job = queuedJobs.remove(what);
+            return job != null && readyQueue.remove(job);
+        }
+    }
+
+    /**
+     * 执行分段下载的子任务
+     */
+    void executeSegment(Runnable runnable) {
+        segmentExecutor.execute(runnable);
+    }
+
+    /**
+     * 按优先级取出可以执行的任务，跳过已达到并发上限的域名
+     */
+    private void promote() {
+        List<Job> readyJobs = new ArrayList<>();
+        synchronized (lock) {
+            Iterator<Job> iterator = readyQueue.iterator();
+            while (runningCount < maxWorkers && iterator.hasNext()) {
+                Job job = iterator.next();
+                Integer hostCount = runningPerHost.get(job.host);
+                if (hostCount != null && hostCount >= maxPerHost) continue;
+                iterator.remove();
+                if (queuedJobs.get(job.what) == job) {
+                    queuedJobs.remove(job.what);
+                }
+                runningPerHost.put(job.host, hostCount == null ? 1 : hostCount + 1);
+                runningCount++;
+                readyJobs.add(job);
+            }
+        }
+        for (final Job job : readyJobs) {
+            workerExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.runnable.run();
+                    } finally {
+                        finished(job);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finished(Job job) {
+        synchronized (lock) {
+            runningCount--;
+            Integer hostCount = runningPerHost.get(job.host);
+            if (hostCount == null || hostCount <= 1) {
+                runningPerHost.remove(job.host);
+            } else {
+                runningPerHost.put(job.host, hostCount - 1);
+            }
+        }
+        promote();
+    }
+
+    /**
+     * WiFi下按CPU核数决定（2-6个），移动网络或未知网络下限制为2个
+     */
+    private static int computeMaxWorkers(Context context) {
+        int cpuCount = Runtime.getRuntime().availableProcessors();
+        int fastWorkers = Math.max(2, Math.min(cpuCount, 6));
+        if (context == null) return fastWorkers;
+        try {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = cm != null ? cm.getActiveNetworkInfo() : null;
+            if (info != null && (info.getType() == ConnectivityManager.TYPE_WIFI
+                    || info.getType() == ConnectivityManager.TYPE_ETHERNET)) {
+                return fastWorkers;
+            }
+            return 2;
+        } catch (SecurityException e) {
+            e.printStackTrace();
+            return fastWorkers;
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.ams.imageloader.download;
+
+/**
+ * author: Ams
+ * Date: 2019/5/20
+ * Description: 下载任务状态
+ */
+public enum DownloadState {
+
+    QUEUED,   // 排队中
+    PROBING,  // 探测文件长度
+    RUNNING,  // 下载中
+    WAITING,  // 失败后等待重试或等待网络恢复
+    PAUSED,   // 已暂停
+    DONE,     // 已结束（成功、失败或取消）
+
+}
@@ -0,0 +1,235 @@
+package com.ams.imageloader.download;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Call;
+
+/**
+ * author: Ams
+ * Date: 2019/5/6
+ * Description: 下载任务，同一地址的多次下载请求合并为一个任务，只传输一次数据，完成后分发给每个订阅者
+ * 同时记录任务发出的所有请求（分段下载时有多个），便于统一取消
+ */
+class DownloadTask {
+
+    /**
+     * 下载订阅者，对应一次downloadOriginal调用
+     */
+    static class Subscriber {
+        final int what;
+        final String filePath;
+        final IDownloadListener listener;
+
+        Subscriber(int what, String filePath, IDownloadListener listener) {
+            this.what = what;
+            this.filePath = filePath;
+            this.listener = listener;
+        }
+    }
+
+    final String url;
+    final String filePath;    // 实际写入的文件，即第一个订阅者的保存地址
+    final int what;           // 调度使用的请求码，即第一个订阅者的请求码
+    final RateLimiter rateLimiter = new RateLimiter(0); // 单个任务的限速，默认不限速
+    final DownloadMetricsCollector metrics = new DownloadMetricsCollector();
+    volatile DownloadPriority priority;
+    // 暂停时保留在内存中，恢复时不需要重新探测和读取日志
+    volatile RemoteInfo remoteInfo;
+    volatile DownloadJournal journal;
+    // 调用方指定的MD5，合并的下载使用第一个指定的；服务器在完整响应中返回的Content-MD5
+    volatile String expectedMd5;
+    volatile String serverMd5;
+    volatile String mimeType; // 由文件头或Content-Type判断的文件类型
+    volatile int retryCount;  // 已重试的次数，网络断开期间的失败不计入
+    volatile ILocalFileSource localSource; // 请求网络前先查找的本地文件来源，查找后置空
+    private final List<Call> calls = new ArrayList<>();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    // 订阅者的只读快照，增删时整体替换，进度回调读取时不加锁也不分配内存
+    private volatile Subscriber[] subscriberSnapshot = new Subscriber[0];
+    private boolean closed;
+    private volatile boolean canceled;
+    private volatile boolean paused;
+    private boolean running;  // 下载线程正在执行
+    private boolean restart;  // 暂停后在下载线程退出前又恢复了，退出后需要重新提交
+    private volatile DownloadState state = DownloadState.QUEUED;
+
+    DownloadTask(String url, String filePath, int what, DownloadPriority priority) {
+        this.url = url;
+        this.filePath = filePath;
+        this.what = what;
+        this.priority = priority;
+    }
+
+    /**
+     * 添加订阅者，任务已结束或已取消时返回false，需要新建任务
+     */
+    synchronized boolean addSubscriber(Subscriber subscriber) {
+        if (closed || canceled) return false;
+        subscribers.add(subscriber);
+        subscriberSnapshot = subscribers.toArray(new Subscriber[subscribers.size()]);
+        return true;
+    }
+
+    /**
+     * 移除订阅者，返回剩余的订阅者数量
+     * 没有订阅者时同时标记取消，之后不再接收新的订阅者，调用方需要中断请求
+     */
+    synchronized int removeSubscriber(int what) {
+        for (int i = subscribers.size() - 1; i >= 0; i--) {
+            if (subscribers.get(i).what == what) {
+                subscribers.remove(i);
+            }
+        }
+        subscriberSnapshot = subscribers.toArray(new Subscriber[subscribers.size()]);
+        if (subscribers.isEmpty()) {
+            canceled = true;
+        }
+        return subscribers.size();
+    }
+
+    /**
+     * 当前订阅者的快照，返回的数组不能修改
+     */
+    Subscriber[] getSubscribers() {
+        return subscriberSnapshot;
+    }
+
+    /**
+     * 任务结束，不再接收新的订阅者，返回需要分发结果的订阅者
+     * 只有第一次调用返回订阅者，取消和下载完成同时发生时结果只分发一次
+     */
+    synchronized List<Subscriber> close() {
+        if (closed) return new ArrayList<>();
+        closed = true;
+        state = DownloadState.DONE;
+        return new ArrayList<>(subscribers);
+    }
+
+    synchronized void addCall(Call call) {
+        if (canceled || paused) {
+            call.cancel();
+        }
+        calls.add(call);
+    }
+
+    synchronized void removeCall(Call call) {
+        calls.remove(call);
+    }
+
+    /**
+     * 所有订阅者都已取消：标记取消并中断所有请求，不再回调失败
+     */
+    void cancel() {
+        canceled = true;
+        abort();
+    }
+
+    /**
+     * 中断所有请求，用于某一段失败时停止其余分段
+     */
+    synchronized void abort() {
+        for (Call call : calls) {
+            call.cancel();
+        }
+    }
+
+    boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * 已取消或已暂停，下载线程需要尽快退出
+     */
+    boolean isStopped() {
+        return canceled || paused;
+    }
+
+    /**
+     * 下载线程开始执行，已取消、已暂停或已在执行时返回false
+     * 退避等待期间暂停又恢复时任务会被提交两次，重复的一次直接跳过
+     */
+    synchronized boolean startRunning() {
+        if (canceled || closed || running) return false;
+        if (paused) {
+            state = DownloadState.PAUSED;
+            return false;
+        }
+        running = true;
+        restart = false;
+        return true;
+    }
+
+    /**
+     * 下载线程因中断退出，返回true表示因暂停退出，不需要回调失败
+     * 退出前已恢复的任务状态改为排队，由调用方重新提交
+     */
+    synchronized boolean stopRunning() {
+        running = false;
+        if (paused) {
+            state = DownloadState.PAUSED;
+            return true;
+        }
+        if (restart) {
+            state = DownloadState.QUEUED;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 需要重新提交调度（暂停后在下载线程退出前又恢复了）
+     */
+    synchronized boolean needRestart() {
+        boolean result = restart;
+        restart = false;
+        return result;
+    }
+
+    /**
+     * 暂停，中断正在进行的请求，已下载的区间保留在日志中
+     */
+    synchronized boolean pause() {
+        if (closed || canceled || paused) return false;
+        paused = true;
+        restart = false;
+        if (!running) {
+            state = DownloadState.PAUSED;
+        }
+        abort();
+        return true;
+    }
+
+    /**
+     * 恢复，返回true时需要重新提交调度
+     * 下载线程还没退出时只做标记，由下载线程退出后重新提交
+     */
+    synchronized boolean resume() {
+        if (closed || canceled || !paused) return false;
+        paused = false;
+        if (running) {
+            restart = true;
+            return false;
+        }
+        state = DownloadState.QUEUED;
+        return true;
+    }
+
+    /**
+     * 订阅者的优先级更高时提升任务优先级
+     */
+    synchronized void raisePriority(DownloadPriority priority) {
+        if (priority.ordinal() > this.priority.ordinal()) {
+            this.priority = priority;
+        }
+    }
+
+    void setState(DownloadState state) {
+        this.state = state;
+    }
+
+    DownloadState getState() {
+        return state;
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.ams.imageloader.download;
+
+import android.content.Context;
+import android.util.Base64;
+
+import com.ams.imageloader.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * author: Ams
+ * Date: 2019/5/24
+ * Description: 下载完成后的MD5校验
+ * 摘要在写文件时随数据流增量计算，不需要下载完成后再完整读一遍文件；
+ * 续传时只补算已下载的前缀，校验失败的文件移到隔离目录，不会被图库扫描到，也不会被续传
+ */
+class DownloadVerifier {
+
+    private static final String QUARANTINE_DIR = "download_quarantine";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * 摘要不一致，重新下载大概率得到同样的结果，不重试
+     */
+    static class ChecksumException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChecksumException() {
+            super("checksum mismatch");
+        }
+    }
+
+    private DownloadVerifier() {
+    }
+
+    /**
+     * 创建增量摘要，已下载的前缀先补算一遍
+     * 分段下载时各段乱序写入，无法增量计算，返回null，完成后再整体计算
+     */
+    static MessageDigest newDigest(File file, DownloadJournal journal) throws IOException {
+        if (journal.segments.size() != 1) return null;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+        long prefix = journal.segments.get(0).downloaded;
+        if (prefix <= 0) return digest;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = prefix;
+            while (remaining > 0) {
+                int len = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len == -1) throw new IOException("unexpected end of file");
+                digest.update(buffer, 0, len);
+                remaining -= len;
+            }
+        } finally {
+            raf.close();
+        }
+        return digest;
+    }
+
+    /**
+     * 计算最终摘要，没有增量摘要时读取整个文件
+     */
+    static String digest(MessageDigest digest, File file) {
+        if (digest != null) return toHex(digest.digest());
+        return FileUtils.getFileMD5ToString(file);
+    }
+
+    /**
+     * 服务器提供的MD5：优先使用Content-MD5，其次是内容为MD5的ETag（如对象存储），都没有时返回null
+     */
+    static String serverMd5(String contentMd5, String eTag) {
+        if (contentMd5 != null) {
+            try {
+                byte[] bytes = Base64.decode(contentMd5.trim(), Base64.DEFAULT);
+                if (bytes.length == 16) return toHex(bytes);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }
+        if (eTag != null && !eTag.startsWith("W/")) {
+            String value = eTag.replace("\"", "").trim();
+            if (value.length() == 32 && isHex(value)) return value;
+        }
+        return null;
+    }
+
+    static boolean matches(String expected, String actual) {
+        return expected != null && expected.equalsIgnoreCase(actual);
+    }
+
+    /**
+     * 将校验失败的文件移到缓存目录下的隔离目录，只保留最近一个同名文件
+     */
+    static void quarantine(Context context, File file) {
+        if (!file.exists()) return;
+        File dir = new File(context.getCacheDir(), QUARANTINE_DIR);
+        File dest = new File(dir, file.getName());
+        if (!FileUtils.createOrExistsDir(dir) || (dest.exists() && !dest.delete())
+                || !(file.renameTo(dest) || FileUtils.moveFile(file, dest))) {
+            file.delete();
+        }
+    }
+
+    private static boolean isHex(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[bytes[i] >> 4 & 0x0f];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+}
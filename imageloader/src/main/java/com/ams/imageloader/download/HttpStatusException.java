@@ -0,0 +1,23 @@
+package com.ams.imageloader.download;
+
+import java.io.IOException;
+
+/**
+ * author: Ams
+ * Date: 2019/5/27
+ * Description: 服务器返回了失败的状态码
+ */
+class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    final int code;
+    final long retryAfter; // 服务器通过Retry-After要求的等待时间（毫秒），没有时为-1
+
+    HttpStatusException(int code, long retryAfter) {
+        super("http connect error: " + code);
+        this.code = code;
+        this.retryAfter = retryAfter;
+    }
+
+}
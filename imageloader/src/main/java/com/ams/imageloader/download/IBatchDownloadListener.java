@@ -0,0 +1,39 @@
+package com.ams.imageloader.download;
+
+/**
+ * author: Ams
+ * Date: 2019/5/17
+ * Description: 批量下载监听，所有回调都在主线程
+ */
+public interface IBatchDownloadListener {
+
+    /**
+     * 整体进度
+     *
+     * @param downloadedBytes 所有项已下载的字节数
+     * @param totalBytes      已知长度的项的总字节数，随下载进行可能增大
+     * @param finishedCount   已结束（成功或失败）的项数
+     * @param totalCount      总项数
+     */
+    void onProgress(int what, long downloadedBytes, long totalBytes, int finishedCount, int totalCount);
+
+    /**
+     * 单项下载成功
+     *
+     * @param index 该项在列表中的位置
+     */
+    void onItemFinish(int what, int index, String filePath);
+
+    /**
+     * 单项下载失败
+     *
+     * @param index 该项在列表中的位置
+     */
+    void onItemFailed(int what, int index, String msg);
+
+    /**
+     * 所有项都已结束
+     */
+    void onFinish(int what, int successCount, int failedCount);
+
+}
@@ -0,0 +1,18 @@
+package com.ams.imageloader.download;
+
+/**
+ * author: Ams
+ * Date: 2019/5/14
+ * Description: 带已下载字节数、下载速度和剩余时间的下载监听
+ */
+public interface IDownloadSpeedListener extends IDownloadListener {
+
+    /**
+     * @param downloadedBytes 已下载的字节数
+     * @param totalBytes      文件总长度，未知时为-1
+     * @param bytesPerSecond  当前下载速度，单位字节/秒
+     * @param remainingTime   预计剩余时间，单位毫秒，总长度未知或还没有速度时为-1
+     */
+    void onSpeed(int what, long downloadedBytes, long totalBytes, long bytesPerSecond, long remainingTime);
+
+}
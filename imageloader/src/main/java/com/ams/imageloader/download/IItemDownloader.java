@@ -0,0 +1,20 @@
+package com.ams.imageloader.download;
+
+import android.content.Context;
+
+/**
+ * author: Ams
+ * Date: 2019/5/17
+ * Description: 批量下载中每一项的下载方式，由图片加载库实现（如已有缓存的直接导出），
+ * 批量下载只依赖这个接口，不依赖上层的图片加载接口
+ */
+public interface IItemDownloader {
+
+    /**
+     * 下载一项，下载任务在返回前已登记，之后可以用what取消
+     */
+    void download(Context context, String url, String filePath, int what, IDownloadListener listener);
+
+    void cancel(int what);
+
+}
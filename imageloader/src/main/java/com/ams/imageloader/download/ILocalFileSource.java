@@ -0,0 +1,18 @@
+package com.ams.imageloader.download;
+
+import java.io.File;
+
+/**
+ * author: Ams
+ * Date: 2019/5/23
+ * Description: 本地已有文件的来源（如图片加载库的磁盘缓存），下载任务登记后先在子线程查找，
+ * 找到时直接导出到保存地址，不再请求网络
+ */
+public interface ILocalFileSource {
+
+    /**
+     * 在子线程调用，返回地址对应的本地文件，没有时返回null
+     */
+    File getLocalFile(String url);
+
+}
@@ -0,0 +1,110 @@
+package com.ams.imageloader.download;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * author: Ams
+ * Date: 2019/5/29
+ * Description: 批量通知图库刷新
+ * 下载完成的文件先收集起来，一段时间内没有新文件（或累计等待过久、数量过多）时
+ * 通过一次MediaScannerConnection.scanFile扫描，批量保存时不会每张图发一次广播；
+ * 下载全部结束时立即扫描，也可以由调用方在空闲时主动flush
+ */
+public class MediaScanNotifier {
+
+    private static final long DEBOUNCE_TIME = 500;   // 最后一个文件加入后等待的时间
+    private static final long MAX_WAIT_TIME = 2000;  // 第一个文件加入后最长等待的时间
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private static volatile MediaScanNotifier instance;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, String> pendingPaths = new LinkedHashMap<>(); // 路径 -> mimeType
+    private long firstPendingTime;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private MediaScanNotifier(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static MediaScanNotifier getInstance(Context context) {
+        if (instance == null) {
+            synchronized (MediaScanNotifier.class) {
+                if (instance == null) {
+                    instance = new MediaScanNotifier(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 加入待扫描的文件，可在任意线程调用
+     */
+    public void add(String filePath) {
+        add(filePath, null);
+    }
+
+    /**
+     * 加入待扫描的文件，可在任意线程调用
+     *
+     * @param mimeType 文件类型，为null时由扫描器根据后缀判断，没有后缀的文件需要指定才能被扫描
+     */
+    public void add(String filePath, String mimeType) {
+        boolean flushNow;
+        long delay;
+        synchronized (pendingPaths) {
+            long now = SystemClock.elapsedRealtime();
+            if (pendingPaths.isEmpty()) {
+                firstPendingTime = now;
+            }
+            pendingPaths.put(filePath, mimeType);
+            flushNow = pendingPaths.size() >= MAX_BATCH_SIZE;
+            // 持续有新文件时，最迟在第一个文件加入MAX_WAIT_TIME后扫描
+            delay = Math.min(DEBOUNCE_TIME, firstPendingTime + MAX_WAIT_TIME - now);
+        }
+        mainHandler.removeCallbacks(flushRunnable);
+        if (flushNow || delay <= 0) {
+            mainHandler.post(flushRunnable);
+        } else {
+            mainHandler.postDelayed(flushRunnable, delay);
+        }
+    }
+
+    /**
+     * 立即扫描所有待扫描的文件，用于下载全部结束或页面退出等空闲时机
+     */
+    public void flush() {
+        String[] paths;
+        String[] mimeTypes;
+        synchronized (pendingPaths) {
+            if (pendingPaths.isEmpty()) return;
+            paths = new String[pendingPaths.size()];
+            mimeTypes = new String[pendingPaths.size()];
+            int i = 0;
+            for (Map.Entry<String, String> entry : pendingPaths.entrySet()) {
+                paths[i] = entry.getKey();
+                mimeTypes[i] = entry.getValue();
+                i++;
+            }
+            pendingPaths.clear();
+        }
+        mainHandler.removeCallbacks(flushRunnable);
+        MediaScannerConnection.scanFile(context, paths, mimeTypes, null);
+    }
+
+}
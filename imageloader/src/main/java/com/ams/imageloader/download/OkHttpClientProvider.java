@@ -0,0 +1,43 @@
+package com.ams.imageloader.download;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * author: Ams
+ * Date: 2019/5/22
+ * Description: 共享的OkHttpClient
+ * Glide加载、原图下载和文件探测都通过newBuilder()从同一个client派生，共用连接池和调度器，
+ * 同一个CDN只需要建立一次连接和TLS握手，HTTP/2下还可以多路复用，各自的超时和拦截器互不影响
+ */
+public class OkHttpClientProvider {
+
+    private static volatile OkHttpClient client;
+
+    private OkHttpClientProvider() {
+    }
+
+    /**
+     * 使用应用自己的client作为基础，需要在第一次加载图片或下载之前调用
+     */
+    public static void setClient(OkHttpClient client) {
+        OkHttpClientProvider.client = client;
+    }
+
+    /**
+     * 获取基础client，各模块通过newBuilder()添加自己的配置，不要直接修改
+     */
+    public static OkHttpClient get() {
+        OkHttpClient result = client;
+        if (result == null) {
+            synchronized (OkHttpClientProvider.class) {
+                result = client;
+                if (result == null) {
+                    result = new OkHttpClient();
+                    client = result;
+                }
+            }
+        }
+        return result;
+    }
+
+}
@@ -1,41 +1,82 @@
 package com.ams.imageloader.download;
 
 import android.content.Context;
-import android.content.Intent;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.SparseArray;
+import android.os.SystemClock;
 
+import com.ams.imageloader.progress.ProgressInterceptor;
+import com.ams.imageloader.util.FileUtils;
 import com.ams.imageloader.util.MediaFileUtils;
+import com.ams.imageloader.util.MimeSniffer;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import okhttp3.Cache;
+import okhttp3.CacheControl;
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.BufferedSource;
 
 /**
  * author: Ams
  * Date: 2019/4/9
  * Description:
- * OkHttp下载器：支持断点续传
+ * OkHttp下载器：支持断点续传（持久化下载日志）、多线程分段下载、同一地址的下载合并
  */
 public class OkHttpDownloadManager {
 
-    private final OkHttpClient okHttpClient;
-    private SparseArray<Call> mCallSparseArray;
+    private static final int DEFAULT_SEGMENT_COUNT = 3;          // 默认分段数
+    private static final long MIN_SEGMENT_LENGTH = 1024 * 1024;  // 每段最小长度，文件太小不分段
+    private static final long DEFAULT_PROGRESS_INTERVAL = 500;   // 进度不变时回调下载速度的最小间隔
+    private static final long DEFAULT_HTTP_CACHE_SIZE = 50 * 1024 * 1024; // 原图HTTP缓存大小，只缓存单连接下载的文件
+    private static final String HTTP_CACHE_DIR = "download_http_cache";
+    private static final long THROTTLE_SLICE = 50;                // 限速等待时每次休眠的最长时间
+    // 查找和导出本地文件、清理残留临时文件的线程，不经过下载调度，已有缓存的原图不需要排在网络下载后面
+    private static final ExecutorService LOCAL_EXECUTOR = Executors.newFixedThreadPool(2);
+
+    private volatile OkHttpClient okHttpClient;
+    private long httpCacheSize = DEFAULT_HTTP_CACHE_SIZE;
+    private boolean initialized;
+    private final DownloadProbe downloadProbe;
+    private final Handler mainHandler;
+    private final DownloadRegistry registry;              // 按地址合并的下载任务及请求码对应的任务
+    private volatile Context appContext;
+    private volatile int segmentCount = DEFAULT_SEGMENT_COUNT;
+    private volatile long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private volatile boolean verifyServerChecksum;
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
+    private volatile DownloadMetricsListener metricsListener;
+    private ConnectivityMonitor connectivityMonitor;
+    private final List<DownloadTask> waitingTasks = new ArrayList<>(); // 等待网络恢复的任务
+    private final RateLimiter globalRateLimiter = new RateLimiter(0);
+    private final RateLimiter foregroundRateLimiter = new RateLimiter(0);
 
     private OkHttpDownloadManager() {
-        okHttpClient = new OkHttpClient.Builder()
+        // 与Glide共用连接池，只调整下载需要的超时
+        okHttpClient = OkHttpClientProvider.get().newBuilder()
                 .connectTimeout(15, TimeUnit.SECONDS)
+                .eventListenerFactory(DownloadMetricsCollector.FACTORY)
                 .build();
-        mCallSparseArray = new SparseArray<>();
+        downloadProbe = new DownloadProbe(okHttpClient);
+        mainHandler = new Handler(Looper.getMainLooper());
+        registry = new DownloadRegistry();
     }
 
     private static class SingletonHolder {
@@ -47,12 +88,161 @@ public class OkHttpDownloadManager {
     }
 
     /**
-     * 取消单条下载请求
+     * 设置分段下载的连接数，小于等于1时只使用单连接下载
+     */
+    public void setSegmentCount(int segmentCount) {
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * 设置文件信息探测结果的缓存时间，同一地址在缓存时间内重复下载不再探测
+     */
+    public void setProbeCacheTime(long time, TimeUnit unit) {
+        downloadProbe.setTtl(unit.toMillis(time));
+    }
+
+    /**
+     * 设置进度回调的最小间隔，进度百分比变化时立即回调，不变时按此间隔回调下载速度
+     */
+    public void setProgressInterval(long time, TimeUnit unit) {
+        progressInterval = unit.toMillis(time);
+    }
+
+    /**
+     * 设置原图HTTP缓存的大小，默认50MB，小于等于0时不使用缓存，需要在第一次下载之前调用
+     * 缓存独立于Glide的磁盘缓存，Glide缓存被清除后再次保存同一张原图时，
+     * 服务器文件未变化只返回304，不再传输文件内容
+     * 缓存不影响下载方式：OkHttp不缓存206响应，分段下载的大文件不写入缓存，
+     * 只有单连接整体下载的文件（小于分段阈值、服务器不支持Range或分段数为1）会写入缓存
+     */
+    public synchronized void setHttpCacheSize(long maxSize) {
+        httpCacheSize = maxSize;
+    }
+
+    /**
+     * 第一次下载时清理上次残留的临时文件，并在应用缓存目录下创建HTTP缓存
+     */
+    private synchronized void init(final Context context) {
+        if (initialized) return;
+        initialized = true;
+        LOCAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                DownloadJournal.gc(context);
+            }
+        });
+        connectivityMonitor = new ConnectivityMonitor(context, new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnected() {
+                DownloadScheduler.getInstance().updateConcurrency(appContext);
+                resumeWaitingTasks();
+            }
+        });
+        if (httpCacheSize <= 0 || okHttpClient.cache() != null) return;
+        File dir = new File(context.getCacheDir(), HTTP_CACHE_DIR);
+        okHttpClient = okHttpClient.newBuilder().cache(new Cache(dir, httpCacheSize)).build();
+        downloadProbe.setClient(okHttpClient);
+    }
+
+    /**
+     * 设置下载性能数据监听，可使用{@link DownloadMetricsAggregator}汇总最近的任务
+     */
+    public void setMetricsListener(DownloadMetricsListener listener) {
+        metricsListener = listener;
+    }
+
+    /**
+     * 设置下载失败后的重试策略，默认按指数退避重试3次
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy != null ? retryPolicy : new RetryPolicy(0, 0, 0);
+    }
+
+    /**
+     * 设置是否按服务器提供的Content-MD5或MD5形式的ETag校验下载的文件，默认不校验
+     * 校验时不分段下载，摘要随数据流增量计算，校验失败回调onFailed
+     */
+    public void setVerifyServerChecksum(boolean verify) {
+        verifyServerChecksum = verify;
+    }
+
+    /**
+     * 设置所有下载的总速度上限，单位字节/秒，小于等于0时不限速
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        globalRateLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * 设置单个下载任务的速度上限，单位字节/秒，小于等于0时不限速
+     * 同一地址的下载是合并的，限速作用于整个传输
+     */
+    public void setBandwidthLimit(int what, long bytesPerSecond) {
+        DownloadTask task = registry.get(what);
+        if (task != null) {
+            task.rateLimiter.setRate(bytesPerSecond);
+        }
+    }
+
+    /**
+     * 设置有图片正在加载时所有下载的总速度上限，单位字节/秒，默认不限制，小于等于0时不让出带宽
+     * 批量保存原图时，避免抢占屏幕上图片加载的带宽
+     * 正在加载的请求包括Glide的预加载等不在屏幕上显示的请求，只在确实需要让行时开启
+     */
+    public void setForegroundBandwidthLimit(long bytesPerSecond) {
+        foregroundRateLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * 调整排队中的下载任务的优先级
+     */
+    public void setPriority(int what, DownloadPriority priority) {
+        DownloadTask task = registry.get(what);
+        if (task == null) return;
+        // 合并的任务按第一个订阅者的请求码排队
+        task.priority = priority;
+        DownloadScheduler.getInstance().setPriority(task.what, priority);
+    }
+
+    /**
+     * 暂停下载，已下载的区间和文件信息保留在内存中，同一地址合并的下载一起暂停
+     * 排队中的任务直接移出队列，下载中的任务中断请求并让出下载线程
+     * 暂停期间同一地址有新的下载请求时，传输自动恢复
+     */
+    public void pauseDownload(int what) {
+        DownloadTask task = registry.get(what);
+        if (task != null && task.pause()) {
+            DownloadScheduler.getInstance().remove(task.what);
+        }
+    }
+
+    /**
+     * 恢复已暂停的下载，按暂停前的区间续传，不重新探测文件长度
+     */
+    public void resumeDownload(int what) {
+        DownloadTask task = registry.get(what);
+        if (task != null && task.resume()) {
+            submitTask(task);
+        }
+    }
+
+    /**
+     * 获取下载任务的状态，请求码没有对应的任务（未开始、已结束或已取消）时返回null
+     */
+    public DownloadState getState(int what) {
+        DownloadTask task = registry.get(what);
+        return task != null ? task.getState() : null;
+    }
+
+    /**
+     * 取消单条下载请求，同一地址还有其他订阅者时不中断传输
+     * 任务还在排队时直接从队列移除，不会再开始
      */
     public void cancelDownload(int what) {
-        Call call = mCallSparseArray.get(what);
-        if (call != null) {
-            call.cancel();
+        DownloadTask task = registry.remove(what);
+        if (task == null) return;
+        if (task.removeSubscriber(what) == 0) {
+            cancelTask(task);
         }
     }
 
@@ -60,12 +250,17 @@ public class OkHttpDownloadManager {
      * 取消所有下载请求
      */
     public void cancelAllDownload() {
-        for (int i = 0; i < mCallSparseArray.size(); i++) {
-            Call call = mCallSparseArray.valueAt(i);
-            call.cancel();
+        for (DownloadTask task : registry.removeAll()) {
+            cancelTask(task);
         }
     }
 
+    private void cancelTask(DownloadTask task) {
+        task.cancel();
+        DownloadScheduler.getInstance().remove(task.what);
+        registry.remove(task, task.close());
+    }
+
     /**
      * 添加下载任务
      *
@@ -74,127 +269,665 @@ public class OkHttpDownloadManager {
      * @param what     请求码，以区分不同的请求
      * @param listener 下载监听
      */
-    public void startDownload(final Context context, final String url, final String filePath, final int what, final IDownloadListener listener) {
-        final Handler mainHandler = new Handler(Looper.getMainLooper());
-        ThreadPoolManager.getInstance().executeTask(new Runnable() {
-            @Override
-            public void run() {
-                InputStream is = null;
-                RandomAccessFile saveFile = null;
-                Call call = null;
-                long downloadLength = 0; // 已经下载的长度
-                final File file = new File(filePath);
-                if (file.exists()) {
-                    downloadLength = file.length();
+    public void startDownload(Context context, String url, String filePath, int what, IDownloadListener listener) {
+        startDownload(context, url, filePath, what, DownloadPriority.USER_INITIATED, listener);
+    }
+
+    /**
+     * 添加指定优先级的下载任务，同一地址正在下载时只订阅结果，不重复传输
+     *
+     * @param url      请求地址
+     * @param filePath 文件保存地址
+     * @param what     请求码，以区分不同的请求
+     * @param priority 下载优先级
+     * @param listener 下载监听
+     */
+    public void startDownload(Context context, String url, String filePath, int what,
+                              DownloadPriority priority, IDownloadListener listener) {
+        startDownload(context, url, filePath, what, priority, null, listener);
+    }
+
+    /**
+     * 添加需要校验MD5的下载任务，下载完成后摘要不一致时回调onFailed，文件被移到隔离目录
+     *
+     * @param url         请求地址
+     * @param filePath    文件保存地址
+     * @param what        请求码，以区分不同的请求
+     * @param priority    下载优先级
+     * @param expectedMd5 文件的MD5（十六进制），为null时只按setVerifyServerChecksum校验
+     * @param listener    下载监听
+     */
+    public void startDownload(Context context, String url, String filePath, int what,
+                              DownloadPriority priority, String expectedMd5, IDownloadListener listener) {
+        startDownload(context, url, filePath, what, priority, expectedMd5, null, listener);
+    }
+
+    /**
+     * 添加下载任务，请求网络前先从localSource查找本地文件，找到时直接导出
+     * 任务在调用线程同步登记，之后立即调用的暂停、取消和调整优先级都能生效，查找和导出在子线程进行
+     *
+     * @param url         请求地址
+     * @param filePath    文件保存地址
+     * @param what        请求码，以区分不同的请求
+     * @param priority    下载优先级
+     * @param expectedMd5 文件的MD5（十六进制），本地文件同样需要校验
+     * @param localSource 本地文件来源，为null时直接下载
+     * @param listener    下载监听
+     */
+    public void startDownload(Context context, String url, String filePath, int what, DownloadPriority priority,
+                              String expectedMd5, ILocalFileSource localSource, IDownloadListener listener) {
+        DownloadTask.Subscriber subscriber = new DownloadTask.Subscriber(what, filePath, listener);
+        appContext = context.getApplicationContext();
+        init(appContext);
+        while (true) {
+            DownloadTask running = registry.join(url, subscriber);
+            if (running != null) {
+                if (running.expectedMd5 == null) running.expectedMd5 = expectedMd5;
+                // 排队中的任务按订阅者中最高的优先级调度
+                running.raisePriority(priority);
+                DownloadScheduler.getInstance().raisePriority(running.what, priority);
+                // 加入已暂停的传输时恢复传输，新的下载请求不能一直等待其他调用方的暂停
+                if (running.resume()) submitTask(running);
+                return;
+            }
+            DownloadTask created = new DownloadTask(url, filePath, what, priority);
+            created.expectedMd5 = expectedMd5;
+            created.localSource = localSource;
+            created.addSubscriber(subscriber);
+            if (registry.add(created)) {
+                DownloadScheduler.getInstance().updateConcurrency(context);
+                submitTask(created);
+                return;
+            }
+        }
+    }
+
+    private void submitTask(final DownloadTask task) {
+        if (task.localSource != null) {
+            LOCAL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runLocal(appContext, task);
                 }
-                try {
-                    long contentLength = getContentLength(url);
-                    if (downloadLength == contentLength) {
-                        // 长度相等代表已下载完成
-                        if (listener != null) {
-                            mainHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    listener.onFinish(what, filePath);
-                                }
-                            });
-                        }
-                    } else {
-                        // 支持断点续传
-                        Request request = new Request.Builder().url(url).addHeader("RANGE", "bytes=" + downloadLength + "-").build();
-                        call = okHttpClient.newCall(request);
-                        mCallSparseArray.put(what, call);
-                        Response response = call.execute();
-                        if (response != null) {
-                            is = response.body().byteStream();
-                            saveFile = new RandomAccessFile(file, "rw");
-                            saveFile.seek(downloadLength); // 跳过已下载的字节
-
-                            byte[] b = new byte[1024];
-                            int total = 0;
-                            int len;
-                            while ((len = is.read(b)) != -1) {
-                                if (!call.isCanceled()) {
-                                    total += len;
-                                    saveFile.write(b, 0, len);
-                                    // 计算下载进度
-                                    final int progress = (int) ((total + downloadLength) * 100 / contentLength);
-                                    if (listener != null) {
-                                        mainHandler.post(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                listener.onProgress(what, progress);
-                                            }
-                                        });
-                                    }
-                                }
-                            }
-                            // 下载完成
-                            if (listener != null) {
-                                mainHandler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        if (MediaFileUtils.isImageFileType(filePath) || MediaFileUtils.isVideoFileType(filePath)) {
-                                            // 图片或视频通知图库刷新
-                                            // 这里用filePath去判断是因为，假如下载的是图片但是保存没有以图片的后缀名去保存，那么通知图库刷新也是无效的。
-                                            context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
-                                                    Uri.fromFile(new File(filePath))));
-                                        }
-                                        listener.onFinish(what, filePath);
-                                    }
-                                });
-                            }
-                        } else {
-                            // 下载失败
-                            if (listener != null) {
-                                mainHandler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        listener.onFailed(what, "http connect error");
-                                    }
-                                });
-                            }
-                        }
+            });
+            return;
+        }
+        task.metrics.onQueued();
+        boolean queued = DownloadScheduler.getInstance().submit(task.what, task, task.url, task.priority,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        runTask(appContext, task);
                     }
-                } catch (final Exception e) {
-                    e.printStackTrace();
-                    if (call != null && call.isCanceled()) return;
-                    // 下载失败
-                    if (listener != null) {
-                        mainHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                listener.onFailed(what, e.getMessage());
-                            }
-                        });
+                });
+        if (!queued) {
+            // 请求码已被另一个排队中的任务占用，两个任务无法分别调度
+            for (DownloadTask.Subscriber subscriber : closeTask(task)) {
+                postFailed(subscriber, "duplicate request code");
+            }
+        }
+    }
+
+    /**
+     * 查找本地文件并导出，没有或导出失败时提交下载调度
+     * 与下载线程一样按运行状态处理暂停和取消，查找前已暂停的任务恢复后重新查找
+     */
+    private void runLocal(Context context, DownloadTask task) {
+        if (!task.startRunning()) return;
+        boolean exported = false;
+        if (!task.isStopped()) {
+            ILocalFileSource source = task.localSource;
+            task.localSource = null;
+            exported = source != null && exportLocalFile(task, source);
+        }
+        if (exported) {
+            deliver(context, task);
+            return;
+        }
+        if (task.stopRunning()) {
+            // 查找期间暂停，退出前已恢复时重新提交
+            if (task.needRestart()) submitTask(task);
+            return;
+        }
+        if (!task.isCanceled()) submitTask(task);
+    }
+
+    /**
+     * 先校验本地文件再导出，校验不通过的文件不会出现在保存地址
+     */
+    private boolean exportLocalFile(DownloadTask task, ILocalFileSource source) {
+        File localFile = source.getLocalFile(task.url);
+        if (localFile == null || !localFile.isFile()) return false;
+        String expectedMd5 = task.expectedMd5;
+        if (expectedMd5 != null
+                && !DownloadVerifier.matches(expectedMd5, FileUtils.getFileMD5ToString(localFile))) {
+            return false;
+        }
+        if (task.isStopped()) return false;
+        if (!FileUtils.linkOrCopyFileAtomically(localFile, new File(task.filePath))) return false;
+        // 后缀识别不了时读取文件头判断类型，通知图库时使用
+        if (!MediaFileUtils.isImageFileType(task.filePath)) {
+            task.mimeType = MimeSniffer.sniff(localFile);
+        }
+        return true;
+    }
+
+    private void runTask(Context context, DownloadTask task) {
+        // 排队期间已被取消或暂停
+        if (!task.startRunning()) return;
+        task.metrics.onStarted();
+        String url = task.url;
+        File file = new File(task.filePath);
+        // 下载中的数据写在临时文件中，完成后才出现在保存地址
+        File temp = DownloadJournal.getTempFile(task.filePath);
+        try {
+            // 暂停后恢复时使用内存中的日志，其次读取持久化的日志，都有时不需要再探测文件长度
+            DownloadJournal journal = task.journal;
+            if (journal != null && (!journal.resumable || temp.length() != journal.contentLength)) {
+                journal = null;
+            }
+            if (journal == null) {
+                journal = openJournal(context, url, file);
+            }
+            if (journal == null) {
+                RemoteInfo remoteInfo = task.remoteInfo;
+                if (remoteInfo == null) {
+                    task.setState(DownloadState.PROBING);
+                    // HTTP缓存中已有时不需要探测
+                    remoteInfo = downloadProbe.probeHttpCache(url);
+                    if (remoteInfo == null) {
+                        remoteInfo = downloadProbe.probe(url, task.metrics.probeTag);
                     }
-                } finally {
+                    task.remoteInfo = remoteInfo;
+                }
+                if (file.exists() && file.length() == remoteInfo.contentLength
+                        && (task.expectedMd5 == null
+                        || DownloadVerifier.matches(task.expectedMd5, FileUtils.getFileMD5ToString(file)))) {
+                    // 没有未完成的日志且长度相等，代表已下载完成
+                    deliver(context, task);
+                    reportMetrics(task, true);
+                    return;
+                }
+                journal = newJournal(context, url, file, remoteInfo, !needVerify(task));
+            }
+            task.journal = journal;
+            task.metrics.onResumed(journal.getDownloadedLength());
+            task.setState(DownloadState.RUNNING);
+            MessageDigest digest = needVerify(task) ? DownloadVerifier.newDigest(temp, journal) : null;
+            try {
+                downloadSegments(task, temp, journal, digest);
+            } catch (RemoteChangedException e) {
+                // 远程文件已变化，丢弃已下载的数据重新下载
+                journal.delete();
+                downloadProbe.invalidate(url);
+                task.remoteInfo = downloadProbe.probe(url, task.metrics.probeTag);
+                journal = newJournal(context, url, file, task.remoteInfo, !needVerify(task));
+                task.journal = journal;
+                digest = needVerify(task) ? DownloadVerifier.newDigest(temp, journal) : null;
+                downloadSegments(task, temp, journal, digest);
+            }
+            verify(context, task, temp, journal, digest);
+            commit(temp, file);
+            journal.delete();
+            // 下载完成
+            deliver(context, task);
+            reportMetrics(task, true);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            if (task.isCanceled()) return;
+            if (task.stopRunning()) {
+                // 因暂停退出，退出前已恢复时重新提交
+                if (task.needRestart()) submitTask(task);
+                return;
+            }
+            if (retry(task, e)) return;
+            // 下载失败
+            reportMetrics(task, false);
+            for (final DownloadTask.Subscriber subscriber : closeTask(task)) {
+                postFailed(subscriber, e.getMessage());
+            }
+        } finally {
+            task.metrics.onStopped();
+        }
+    }
+
+    /**
+     * 临时文件落盘后原子重命名为保存地址，保存地址上不会出现不完整的文件
+     */
+    private void commit(File temp, File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("rename temp file failed");
+        }
+    }
+
+    private void reportMetrics(DownloadTask task, boolean success) {
+        DownloadMetricsListener listener = metricsListener;
+        if (listener == null) return;
+        RemoteInfo remoteInfo = task.remoteInfo;
+        listener.onMetrics(task.metrics.build(task.url, task.what, success, task.retryCount,
+                remoteInfo != null && remoteInfo.cached));
+    }
+
+    /**
+     * 可重试的失败：没有网络时等待网络恢复，不计入重试次数；有网络时按退避时间重新提交，
+     * 重新提交后使用内存中的日志从已确认写入的位置续传
+     */
+    private boolean retry(final DownloadTask task, Exception e) {
+        RetryPolicy policy = retryPolicy;
+        if (!policy.isRetryable(e)) return false;
+        if (connectivityMonitor != null && !connectivityMonitor.isConnected()) {
+            task.setState(DownloadState.WAITING);
+            synchronized (waitingTasks) {
+                waitingTasks.add(task);
+            }
+            // 加入等待列表前网络可能已经恢复
+            if (connectivityMonitor.isConnected()) resumeWaitingTasks();
+            return true;
+        }
+        if (task.retryCount >= policy.getMaxRetries()) return false;
+        long delay = policy.getDelay(task.retryCount++, e);
+        task.setState(DownloadState.WAITING);
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                // 等待期间取消或暂停的任务在开始执行时跳过
+                submitTask(task);
+            }
+        }, delay);
+        return true;
+    }
+
+    private void resumeWaitingTasks() {
+        List<DownloadTask> tasks;
+        synchronized (waitingTasks) {
+            tasks = new ArrayList<>(waitingTasks);
+            waitingTasks.clear();
+        }
+        for (DownloadTask task : tasks) {
+            if (!task.isCanceled()) submitTask(task);
+        }
+    }
+
+    private boolean needVerify(DownloadTask task) {
+        return task.expectedMd5 != null || verifyServerChecksum;
+    }
+
+    /**
+     * 校验下载完成的文件，不一致时隔离文件并抛出异常，由调用方回调失败
+     * 没有可用的摘要（未指定且服务器未提供）时视为通过
+     */
+    private void verify(Context context, DownloadTask task, File file, DownloadJournal journal,
+                        MessageDigest digest) throws IOException {
+        if (!needVerify(task)) return;
+        String expected = task.expectedMd5;
+        if (expected == null) {
+            expected = DownloadVerifier.serverMd5(task.serverMd5, journal.eTag);
+        }
+        if (expected == null) return;
+        if (!DownloadVerifier.matches(expected, DownloadVerifier.digest(digest, file))) {
+            DownloadVerifier.quarantine(context, file);
+            task.journal = null;
+            task.remoteInfo = null;
+            downloadProbe.invalidate(task.url);
+            throw new DownloadVerifier.ChecksumException();
+        }
+    }
+
+    /**
+     * 结束任务，之后同一地址的下载请求会新建任务
+     */
+    private List<DownloadTask.Subscriber> closeTask(DownloadTask task) {
+        List<DownloadTask.Subscriber> subscribers = task.close();
+        registry.remove(task, subscribers);
+        return subscribers;
+    }
+
+    /**
+     * 将下载好的文件分发到每个订阅者的保存地址，优先使用硬链接
+     * 第一个订阅者已取消时，文件直接移动给其他订阅者
+     * 拷贝同样先写临时文件再重命名
+     */
+    private void deliver(Context context, DownloadTask task) {
+        List<DownloadTask.Subscriber> subscribers = closeTask(task);
+        File source = new File(task.filePath);
+        boolean keepSource = false;
+        for (DownloadTask.Subscriber subscriber : subscribers) {
+            if (subscriber.filePath.equals(task.filePath)) {
+                keepSource = true;
+                break;
+            }
+        }
+        for (int i = 0; i < subscribers.size(); i++) {
+            DownloadTask.Subscriber subscriber = subscribers.get(i);
+            File dest = new File(subscriber.filePath);
+            boolean success = true;
+            if (!dest.equals(source)) {
+                if (!keepSource && i == subscribers.size() - 1) {
+                    success = source.renameTo(dest) || (FileUtils.linkOrCopyFileAtomically(source, dest) && source.delete());
+                } else {
+                    success = FileUtils.linkOrCopyFileAtomically(source, dest);
+                }
+            }
+            if (success) {
+                postFinish(context, subscriber, task.mimeType);
+            } else {
+                postFailed(subscriber, "copy file error");
+            }
+        }
+        // 所有下载都已结束，不再等待，立即扫描
+        if (registry.isEmpty()) {
+            MediaScanNotifier.getInstance(context).flush();
+        }
+    }
+
+    private void postFinish(Context context, final DownloadTask.Subscriber subscriber, String mimeType) {
+        final String filePath = subscriber.filePath;
+        if (MediaFileUtils.isMediaFile(filePath, mimeType)) {
+            // 图片或视频通知图库刷新，批量合并后扫描
+            // 保存时没有图片后缀的文件，按文件头或Content-Type判断的类型扫描
+            MediaScanNotifier.getInstance(context).add(filePath, mimeType);
+        }
+        if (subscriber.listener == null) return;
+        // 带速度的监听在完成前收到最终的字节数，已有缓存直接导出的文件没有进度回调，在下载线程读取长度
+        final long length = subscriber.listener instanceof IDownloadSpeedListener ? new File(filePath).length() : -1;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (length >= 0) {
+                    ((IDownloadSpeedListener) subscriber.listener).onSpeed(subscriber.what, length, length, 0, 0);
+                }
+                subscriber.listener.onFinish(subscriber.what, filePath);
+            }
+        });
+    }
+
+    private void postFailed(final DownloadTask.Subscriber subscriber, final String msg) {
+        if (subscriber.listener == null) return;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                subscriber.listener.onFailed(subscriber.what, msg);
+            }
+        });
+    }
+
+    /**
+     * 读取未完成的下载日志，地址不一致、不可续传或临时文件已被改动时丢弃
+     */
+    private DownloadJournal openJournal(Context context, String url, File file) {
+        DownloadJournal journal = DownloadJournal.load(context, file.getAbsolutePath());
+        if (journal == null) return null;
+        File temp = DownloadJournal.getTempFile(file.getAbsolutePath());
+        if (!journal.resumable || !url.equals(journal.url) || !temp.exists() || temp.length() != journal.contentLength) {
+            journal.delete();
+            return null;
+        }
+        return journal;
+    }
+
+    /**
+     * 新建下载日志并预分配临时文件，没有日志记录的旧数据无法校验，全部丢弃
+     * 需要增量计算摘要时不分段
+     */
+    private DownloadJournal newJournal(Context context, String url, File file, RemoteInfo remoteInfo,
+                                       boolean segmented) throws IOException {
+        int count = 1;
+        if (segmented && canSegment(remoteInfo)) {
+            count = (int) Math.min(segmentCount, remoteInfo.contentLength / MIN_SEGMENT_LENGTH);
+        }
+        DownloadJournal journal = DownloadJournal.create(context, file.getAbsolutePath(), url, remoteInfo, count);
+        RandomAccessFile saveFile = new RandomAccessFile(DownloadJournal.getTempFile(file.getAbsolutePath()), "rw");
+        try {
+            saveFile.setLength(journal.resumable ? journal.contentLength : 0);
+        } finally {
+            saveFile.close();
+        }
+        journal.save();
+        return journal;
+    }
+
+    private boolean canSegment(RemoteInfo remoteInfo) {
+        // HTTP缓存中已有的文件整体请求，才能由缓存重新验证
+        return !remoteInfo.cached && segmentCount > 1 && remoteInfo.acceptRanges
+                && remoteInfo.contentLength >= MIN_SEGMENT_LENGTH * 2;
+    }
+
+    /**
+     * 按日志中未完成的区间并发下载，写入同一文件的对应位置，进度合并后回调
+     * 中途失败或取消时保存日志，下次从已确认写入的位置继续
+     */
+    private void downloadSegments(final DownloadTask task, final File file, final DownloadJournal journal,
+                                  final MessageDigest digest) throws Exception {
+        final List<DownloadJournal.Segment> pending = new ArrayList<>();
+        for (DownloadJournal.Segment segment : journal.segments) {
+            if (!segment.isComplete()) pending.add(segment);
+        }
+        if (pending.isEmpty()) return;
+
+        final DownloadProgressDispatcher dispatcher = new DownloadProgressDispatcher(task, mainHandler,
+                journal.contentLength, journal.getDownloadedLength(), progressInterval);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(pending.size());
+
+        Runnable[] segments = new Runnable[pending.size()];
+        for (int i = 0; i < pending.size(); i++) {
+            final DownloadJournal.Segment segment = pending.get(i);
+            segments[i] = new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        if (is != null) is.close();
-                        if (saveFile != null) saveFile.close();
+                        downloadRange(task, file, journal, segment, dispatcher, digest);
                     } catch (Exception e) {
-                        e.printStackTrace();
+                        if (error.compareAndSet(null, e)) {
+                            // 任意一段失败，中断其余分段
+                            task.abort();
+                        }
+                    } finally {
+                        latch.countDown();
                     }
                 }
+            };
+        }
+        // 第一段在当前线程执行，其余分段交给分段线程
+        for (int i = 1; i < segments.length; i++) {
+            DownloadScheduler.getInstance().executeSegment(segments[i]);
+        }
+        segments[0].run();
+        latch.await();
+
+        if (error.get() != null || task.isStopped()) {
+            try {
+                journal.save();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        });
+            throw error.get() != null ? error.get() : new IOException("Stopped");
+        }
     }
 
     /**
-     * 获取图片的总长度
+     * 下载一段数据并写入文件对应位置，可续传时带上If-Range，远程文件变化时服务器返回200而不是206
+     * 从头下载整个文件时不带Range，可以使用HTTP缓存，缓存未过期时直接读取，过期时由OkHttp重新验证
+     * digest不为null时只有一段，写入的数据按顺序更新摘要
      */
-    private long getContentLength(String downloadUrl) throws IOException {
-        OkHttpClient client = new OkHttpClient();
-        Request request = new Request.Builder()
-                .url(downloadUrl)
-                .build();
-        Response response = client.newCall(request).execute();
-        if (response != null && response.isSuccessful()) {
-            long contentLength = response.body().contentLength();
-            response.body().close();
-            return contentLength;
+    private void downloadRange(DownloadTask task, File file, DownloadJournal journal, DownloadJournal.Segment segment,
+                               DownloadProgressDispatcher dispatcher, MessageDigest digest) throws IOException {
+        BufferedSource source = null;
+        RandomAccessFile saveFile = null;
+        ByteBuffer buffer = null;
+        long position = segment.position();
+        Request.Builder builder = new Request.Builder().url(task.url);
+        boolean whole = position == 0 && (segment.end < 0 || segment.end == journal.contentLength - 1);
+        boolean ranged = journal.resumable && !whole;
+        if (ranged) {
+            builder.header("Range", "bytes=" + position + "-" + segment.end);
+            String validator = journal.getValidator();
+            if (validator != null) {
+                builder.header("If-Range", validator);
+            }
+            // 部分请求不能用缓存的完整响应代替
+            builder.cacheControl(CacheControl.FORCE_NETWORK);
+        } else {
+            // 长度需要与实际文件一致，不接受压缩编码
+            builder.header("Accept-Encoding", "identity");
+        }
+        Call call = okHttpClient.newCall(builder.tag(task.metrics).build());
+        task.addCall(call);
+        try {
+            Response response = call.execute();
+            if (ranged && response.code() == 200) {
+                response.close();
+                throw new RemoteChangedException();
+            }
+            long bodyLength = response.body() != null ? response.body().contentLength() : -1;
+            if (journal.resumable && !ranged && response.isSuccessful()
+                    && bodyLength >= 0 && bodyLength != journal.contentLength) {
+                // 缓存重新验证时文件已变化，长度与日志不一致
+                response.close();
+                throw new RemoteChangedException();
+            }
+            if (!response.isSuccessful()) {
+                response.close();
+                throw new HttpStatusException(response.code(), parseRetryAfter(response.header("Retry-After")));
+            }
+            if (!ranged) {
+                task.serverMd5 = response.header("Content-MD5");
+            }
+            if (task.mimeType == null) {
+                task.mimeType = MimeSniffer.fromContentType(response.header("Content-Type"));
+            }
+            // 从文件开头下载时，用第一块数据的文件头判断类型
+            boolean sniff = position == 0;
+            source = response.body().source();
+            saveFile = new RandomAccessFile(file, "rw");
+            FileChannel channel = saveFile.getChannel();
+
+            // 每次把缓冲区填满再写一次文件，缓冲区大小随网速调整
+            buffer = DownloadBufferPool.acquire(DownloadBufferPool.MIN_SIZE);
+            long remaining = segment.end >= 0 ? segment.end - position + 1 : Long.MAX_VALUE;
+            long fillStartTime = SystemClock.elapsedRealtime();
+            boolean exhausted = false;
+            while (remaining > 0 && !exhausted) {
+                byte[] array = buffer.array();
+                int limit = (int) Math.min(buffer.capacity(), remaining);
+                int filled = 0;
+                while (filled < limit) {
+                    int len = source.read(array, filled, limit - filled);
+                    if (len == -1) {
+                        exhausted = true;
+                        break;
+                    }
+                    filled += len;
+                }
+                if (task.isStopped()) throw new IOException("Stopped");
+                if (filled == 0) break;
+                buffer.clear();
+                buffer.limit(filled);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position); // 跳过已下载的字节，写入对应位置
+                }
+                if (sniff) {
+                    String mimeType = MimeSniffer.sniff(array, 0, filled);
+                    if (mimeType != null) task.mimeType = mimeType;
+                    sniff = false;
+                }
+                if (digest != null) {
+                    digest.update(array, 0, filled);
+                }
+                remaining -= filled;
+                segment.downloaded += filled;
+                task.metrics.onBytes(filled);
+                journal.saveIfNeeded(channel, segment);
+                // 合并各段进度，由分发器决定是否回调
+                dispatcher.onBytesRead(filled);
+                throttle(task, filled);
+
+                long now = SystemClock.elapsedRealtime();
+                int size = DownloadBufferPool.sizeFor(filled, now - fillStartTime);
+                fillStartTime = now;
+                if (size != buffer.capacity()) {
+                    DownloadBufferPool.release(buffer);
+                    buffer = DownloadBufferPool.acquire(size);
+                }
+            }
+            if (segment.end >= 0 && remaining > 0) {
+                // 服务器提前关闭了连接，与OkHttp的长度校验一致，按网络异常处理
+                throw new ProtocolException("unexpected end of stream");
+            }
+        } finally {
+            task.removeCall(call);
+            DownloadBufferPool.release(buffer);
+            try {
+                if (source != null) source.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (saveFile != null) {
+                try {
+                    // 退出前刷盘，暂停或失败后保存的日志包含本段已写入的数据
+                    DownloadJournal.sync(saveFile.getChannel(), segment);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                try {
+                    saveFile.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Retry-After只支持秒数形式，日期形式忽略
+     */
+    private static long parseRetryAfter(String value) {
+        if (value == null) return -1;
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 限速：同时从全局、单个任务的令牌桶扣除，有图片正在加载时再从前台让行的令牌桶扣除，按最长的等待时间等待
+     * 分片休眠，每片之间检查暂停和取消，限速很低时也能及时退出
+     */
+    private void throttle(DownloadTask task, int bytes) throws IOException {
+        long waitTime = Math.max(globalRateLimiter.reserve(bytes), task.rateLimiter.reserve(bytes));
+        if (ProgressInterceptor.getActiveRequestCount() > 0) {
+            waitTime = Math.max(waitTime, foregroundRateLimiter.reserve(bytes));
+        }
+        long deadline = SystemClock.elapsedRealtime() + waitTime;
+        long remaining = waitTime;
+        while (remaining > 0) {
+            if (task.isStopped()) throw new IOException("Stopped");
+            try {
+                Thread.sleep(Math.min(remaining, THROTTLE_SLICE));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while rate limiting");
+            }
+            remaining = deadline - SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * 续传时远程文件已变化
+     */
+    private static class RemoteChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RemoteChangedException() {
+            super("remote file changed");
         }
-        return 0;
     }
 
 }
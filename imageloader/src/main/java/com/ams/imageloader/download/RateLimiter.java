@@ -0,0 +1,42 @@
+package com.ams.imageloader.download;
+
+import android.os.SystemClock;
+
+/**
+ * author: Ams
+ * Date: 2019/5/16
+ * Description: 令牌桶限速，每秒生成rate个令牌（字节），最多积攒1秒的令牌，rate小于等于0时不限速
+ * 令牌不足时允许透支，返回透支部分所需的等待时间，由调用方分片等待，等待期间可以响应暂停和取消
+ */
+class RateLimiter {
+
+    private long rate;
+    private long tokens;
+    private long lastRefillTime;
+
+    RateLimiter(long rate) {
+        setRate(rate);
+    }
+
+    synchronized void setRate(long rate) {
+        this.rate = rate;
+        this.tokens = Math.max(rate, 0);
+        this.lastRefillTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 消耗bytes个令牌，返回需要等待的毫秒数，令牌充足时为0
+     */
+    synchronized long reserve(long bytes) {
+        if (rate <= 0) return 0;
+        long now = SystemClock.elapsedRealtime();
+        long newTokens = (now - lastRefillTime) * rate / 1000;
+        if (newTokens > 0) {
+            tokens = Math.min(rate, tokens + newTokens);
+            lastRefillTime = now;
+        }
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : -tokens * 1000 / rate;
+    }
+
+}
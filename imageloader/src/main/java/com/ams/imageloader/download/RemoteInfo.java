@@ -0,0 +1,28 @@
+package com.ams.imageloader.download;
+
+/**
+ * author: Ams
+ * Date: 2019/5/6
+ * Description: 远程文件信息
+ */
+class RemoteInfo {
+
+    final long contentLength;      // 文件总长度，未知时为-1
+    final boolean acceptRanges;    // 服务器是否支持Range请求
+    final String eTag;             // 用于续传时校验远程文件是否变化
+    final String lastModified;
+    final boolean cached;         // 来自本地HTTP缓存，整体请求一次，由OkHttp重新验证
+
+    RemoteInfo(long contentLength, boolean acceptRanges, String eTag, String lastModified) {
+        this(contentLength, acceptRanges, eTag, lastModified, false);
+    }
+
+    RemoteInfo(long contentLength, boolean acceptRanges, String eTag, String lastModified, boolean cached) {
+        this.contentLength = contentLength;
+        this.acceptRanges = acceptRanges;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.cached = cached;
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.ams.imageloader.download;
+
+import java.io.EOFException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import okhttp3.internal.http2.StreamResetException;
+
+/**
+ * author: Ams
+ * Date: 2019/5/27
+ * Description: 下载失败后的重试策略
+ * 网络异常和可重试的状态码（408、429、5xx）按指数退避加随机抖动重试，从已确认写入的位置续传，
+ * 其他状态码、校验失败和本地文件错误（路径不可写、空间不足等）直接回调失败
+ */
+public class RetryPolicy {
+
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long DEFAULT_BASE_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long DEFAULT_MAX_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private final Random random = new Random();
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * 默认重试3次，退避时间从1秒开始每次翻倍，最长30秒
+     */
+    public RetryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param maxRetries 最大重试次数，0为不重试
+     * @param baseDelay  第一次重试前的退避时间（毫秒）
+     * @param maxDelay   退避时间上限（毫秒）
+     */
+    public RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelay = Math.max(0, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * 是否可以重试：网络异常和408、429、5xx可以重试
+     * 本地文件的读写错误重试也不会成功，不能因为没有网络而一直等待
+     */
+    boolean isRetryable(Exception e) {
+        if (e instanceof HttpStatusException) {
+            int code = ((HttpStatusException) e).code;
+            return code == 408 || code == 429 || code >= 500;
+        }
+        return isNetworkError(e);
+    }
+
+    /**
+     * 连接失败、超时、连接被断开、TLS错误或响应不完整，OkHttp会把底层异常作为cause包装，需要逐层判断
+     */
+    static boolean isNetworkError(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SocketException             // 连接失败、连接被重置
+                    || t instanceof SocketTimeoutException
+                    || t instanceof UnknownHostException
+                    || t instanceof SSLException
+                    || t instanceof ProtocolException    // 响应体不完整
+                    || t instanceof EOFException         // 读取响应头时连接被关闭
+                    || t instanceof StreamResetException) {
+                return true;
+            }
+            if (t.getCause() == t) break;
+        }
+        return false;
+    }
+
+    /**
+     * 第attempt次重试（从0开始）前的退避时间，取指数退避值的一半加上随机的另一半，
+     * 避免大量任务在同一时刻重试，服务器要求了Retry-After时不短于要求的时间
+     */
+    long getDelay(int attempt, Exception e) {
+        long delay = baseDelay << Math.min(attempt, 16);
+        if (delay <= 0 || delay > maxDelay) delay = maxDelay;
+        long half = delay / 2;
+        long result;
+        synchronized (random) {
+            result = half + (long) (random.nextDouble() * (delay - half));
+        }
+        if (e instanceof HttpStatusException) {
+            result = Math.max(result, Math.min(((HttpStatusException) e).retryAfter, maxDelay));
+        }
+        return result;
+    }
+
+}
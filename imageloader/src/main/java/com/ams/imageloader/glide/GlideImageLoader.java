@@ -1,21 +1,26 @@
 package com.ams.imageloader.glide;
 
 import android.content.Context;
-import android.content.Intent;
 import android.graphics.PointF;
 import android.graphics.drawable.AnimationDrawable;
 import android.graphics.drawable.Drawable;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
+import android.widget.ImageView;
 
 import com.ams.imageloader.IImageLoaderStrategy;
 import com.ams.imageloader.ILoaderListener;
 import com.ams.imageloader.ImageLoaderOptions;
 import com.ams.imageloader.LargeImageLoaderOptions;
+import com.ams.imageloader.download.DownloadBatch;
+import com.ams.imageloader.download.DownloadItem;
+import com.ams.imageloader.download.DownloadPriority;
+import com.ams.imageloader.download.IBatchDownloadListener;
 import com.ams.imageloader.download.IDownloadListener;
+import com.ams.imageloader.download.IItemDownloader;
+import com.ams.imageloader.download.ILocalFileSource;
 import com.ams.imageloader.download.OkHttpDownloadManager;
 import com.ams.imageloader.glide.transform.BlurTransform;
 import com.ams.imageloader.glide.transform.CircleTransform;
@@ -23,7 +28,6 @@ import com.ams.imageloader.glide.transform.CornerTransform;
 import com.ams.imageloader.progress.ProgressInterceptor;
 import com.ams.imageloader.util.FileUtils;
 import com.ams.imageloader.util.LargeScaleUtils;
-import com.ams.imageloader.util.MediaFileUtils;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.RequestBuilder;
 import com.bumptech.glide.disklrucache.DiskLruCache;
@@ -45,6 +49,7 @@ import com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * author: Ams
@@ -119,13 +124,19 @@ public class GlideImageLoader implements IImageLoaderStrategy {
                     .apply(transform(true, new RequestOptions(), options)));
         }
 
-        // 加载进度监听
-        ProgressInterceptor.addListener(options.url, options.progressListener);
+        // 加载进度监听和渐进式预览，由Target在加载结束或被清除时移除
+        ProgressImageViewTarget progressTarget = null;
+        if ((options.progressListener != null || options.progressivePreview) && !TextUtils.isEmpty(options.url)) {
+            ProgressInterceptor.setSizeHint(options.url, options.sizeHint);
+            progressTarget = new ProgressImageViewTarget(options.view, options.url, options.progressListener,
+                    options.progressivePreview);
+            // into(Target)不会根据ScaleType设置变换，这里与into(ImageView)保持一致
+            requestOptions = applyScaleType(requestOptions, options.view);
+        }
 
-        requestBuilder.apply(requestOptions).listener(new RequestListener<Drawable>() {
+        requestBuilder = requestBuilder.apply(requestOptions).listener(new RequestListener<Drawable>() {
             @Override
             public boolean onLoadFailed(@Nullable GlideException e, Object model, Target<Drawable> target, boolean isFirstResource) {
-                ProgressInterceptor.removeListener(options.url);
                 if (options.loaderListener != null) options.loaderListener.onFailed();
                 return false;
             }
@@ -133,7 +144,6 @@ public class GlideImageLoader implements IImageLoaderStrategy {
             @Override
             public boolean onResourceReady(Drawable resource, Object model, Target<Drawable> target,
                                            DataSource dataSource, boolean isFirstResource) {
-                ProgressInterceptor.removeListener(options.url);
                 // 加载来源监听
                 if (options.loaderListener != null) {
                     if (dataSource == DataSource.LOCAL) {
@@ -150,7 +160,37 @@ public class GlideImageLoader implements IImageLoaderStrategy {
                 }
                 return false;
             }
-        }).into(options.view);
+        });
+        if (progressTarget != null) {
+            progressTarget.register();
+            requestBuilder.into(progressTarget);
+            progressTarget.unregisterIfUnused();
+        } else {
+            requestBuilder.into(options.view);
+        }
+    }
+
+    /**
+     * 没有设置变换时按ImageView的ScaleType选择变换，与Glide的into(ImageView)一致
+     */
+    private RequestOptions applyScaleType(RequestOptions requestOptions, ImageView view) {
+        if (requestOptions.isTransformationSet() || !requestOptions.isTransformationAllowed()
+                || view.getScaleType() == null) {
+            return requestOptions;
+        }
+        switch (view.getScaleType()) {
+            case CENTER_CROP:
+                return requestOptions.clone().optionalCenterCrop();
+            case CENTER_INSIDE:
+            case FIT_XY:
+                return requestOptions.clone().optionalCenterInside();
+            case FIT_CENTER:
+            case FIT_START:
+            case FIT_END:
+                return requestOptions.clone().optionalFitCenter();
+            default:
+                return requestOptions;
+        }
     }
 
     /**
@@ -264,8 +304,8 @@ public class GlideImageLoader implements IImageLoaderStrategy {
         }
     }
 
-    // 获取Glide本地缓存路径
-    private File getCacheFile(Context context, String url) {
+    // 获取Glide本地缓存路径，批量下载时会在多个线程调用，同步避免同时打开缓存目录
+    private synchronized File getCacheFile(Context context, String url) {
         DataCacheKey dataCacheKey = new DataCacheKey(new GlideUrl(url), EmptySignature.obtain());
         SafeKeyGenerator safeKeyGenerator = new SafeKeyGenerator();
         String safeKey = safeKeyGenerator.getSafeKey(dataCacheKey);
@@ -287,26 +327,62 @@ public class GlideImageLoader implements IImageLoaderStrategy {
 
     @Override
     public void downloadOriginal(Context context, String url, String filePath, int what, IDownloadListener listener) {
-        // 1、查找缓存是否有此路径缓存
-        File cacheFile = getCacheFile(context, url);
-        if (cacheFile != null) {
-            // 2、如果有缓存，将缓存文件复制到目标位置
-            boolean copyResult = FileUtils.copyFile(cacheFile.getAbsolutePath(), filePath);
-            if (copyResult) {
-                // 3、通知图库刷新
-                if (MediaFileUtils.isImageFileType(filePath)) {
-                    context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
-                            Uri.fromFile(new File(filePath))));
-                }
-                if (listener != null) listener.onFinish(what, filePath);
-            } else {
-                // 4、拷贝失败，重新下载
-                OkHttpDownloadManager.getInstance().startDownload(context, url, filePath, what, listener);
+        downloadOriginal(context, url, filePath, what, DownloadPriority.USER_INITIATED, listener);
+    }
+
+    @Override
+    public void downloadOriginal(Context context, String url, String filePath, int what, DownloadPriority priority, IDownloadListener listener) {
+        downloadOriginal(context, url, filePath, what, priority, null, listener);
+    }
+
+    @Override
+    public void downloadOriginal(Context context, String url, String filePath, int what,
+                                 DownloadPriority priority, String md5, IDownloadListener listener) {
+        final Context appContext = context.getApplicationContext();
+        // 任务在当前线程登记，查找Glide缓存和导出文件由下载器在子线程进行：
+        // 有缓存时校验后硬链接或拷贝到保存地址并通知图库，没有缓存、导出失败或校验不通过时从服务器下载
+        OkHttpDownloadManager.getInstance().startDownload(appContext, url, filePath, what, priority, md5,
+                new ILocalFileSource() {
+                    @Override
+                    public File getLocalFile(String url) {
+                        return getCacheFile(appContext, url);
+                    }
+                }, listener);
+    }
+
+    @Override
+    public void setDownloadPriority(int what, DownloadPriority priority) {
+        OkHttpDownloadManager.getInstance().setPriority(what, priority);
+    }
+
+    @Override
+    public void pauseDownload(int what) {
+        OkHttpDownloadManager.getInstance().pauseDownload(what);
+    }
+
+    @Override
+    public void resumeDownload(int what) {
+        OkHttpDownloadManager.getInstance().resumeDownload(what);
+    }
+
+    @Override
+    public void downloadOriginals(Context context, List<DownloadItem> items, int what, IBatchDownloadListener listener) {
+        DownloadBatch.start(context, new IItemDownloader() {
+            @Override
+            public void download(Context context, String url, String filePath, int what, IDownloadListener listener) {
+                downloadOriginal(context, url, filePath, what, listener);
             }
-        } else {
-            // 5、没有缓存，需要从服务器下载
-            OkHttpDownloadManager.getInstance().startDownload(context, url, filePath, what, listener);
-        }
+
+            @Override
+            public void cancel(int what) {
+                cancelDownload(what);
+            }
+        }, items, what, listener);
+    }
+
+    @Override
+    public void cancelBatchDownload(int what) {
+        DownloadBatch.cancel(what);
     }
 
     @Override
@@ -316,6 +392,7 @@ public class GlideImageLoader implements IImageLoaderStrategy {
 
     @Override
     public void cancelAllDownload() {
+        DownloadBatch.cancelAll();
         OkHttpDownloadManager.getInstance().cancelAllDownload();
     }
 
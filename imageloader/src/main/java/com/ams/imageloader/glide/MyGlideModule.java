@@ -2,6 +2,7 @@ package com.ams.imageloader.glide;
 
 import android.content.Context;
 
+import com.ams.imageloader.download.OkHttpClientProvider;
 import com.ams.imageloader.progress.ProgressInterceptor;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.GlideBuilder;
@@ -28,7 +29,8 @@ public class MyGlideModule implements GlideModule {
 
     @Override
     public void registerComponents(Context context, Glide glide, Registry registry) {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        // 与原图下载共用连接池
+        OkHttpClient.Builder builder = OkHttpClientProvider.get().newBuilder();
         // 添加拦截器，监听进度
         builder.addInterceptor(new ProgressInterceptor());
         OkHttpClient okHttpClient = builder.build();
@@ -0,0 +1,105 @@
+package com.ams.imageloader.glide;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.Nullable;
+import android.widget.ImageView;
+
+import com.ams.imageloader.progress.IPreviewListener;
+import com.ams.imageloader.progress.IProgressListener;
+import com.ams.imageloader.progress.ProgressInterceptor;
+import com.bumptech.glide.request.Request;
+import com.bumptech.glide.request.target.DrawableImageViewTarget;
+import com.bumptech.glide.request.transition.Transition;
+
+/**
+ * author: Ams
+ * Date: 2019/5/20
+ * Description: 带进度监听的ImageView目标，在加载开始时注册监听器，
+ * 加载成功、失败或被清除（同一View开始新的加载、页面销毁）时自动移除，避免监听器泄漏
+ * 开启预览时，最终图片显示之前先显示渐进式JPEG的预览图
+ */
+class ProgressImageViewTarget extends DrawableImageViewTarget {
+
+    private final String url;
+    private final IProgressListener listener;
+    private final IPreviewListener previewListener;
+    private boolean registered;
+    private boolean attached;      // Glide是否把新建的请求设置给了当前Target
+
+    ProgressImageViewTarget(ImageView view, String url, IProgressListener listener, boolean preview) {
+        super(view);
+        this.url = url;
+        this.listener = listener;
+        this.previewListener = preview ? new IPreviewListener() {
+            @Override
+            public void onPreview(Bitmap bitmap) {
+                // 已结束或已被清除的加载不再显示预览
+                if (!registered) return;
+                getView().setImageDrawable(new BitmapDrawable(getView().getResources(), bitmap));
+            }
+
+            @Override
+            public void onProgress(int progress) {
+            }
+        } : null;
+    }
+
+    @Override
+    public void setRequest(@Nullable Request request) {
+        if (request != null) attached = true;
+        super.setRequest(request);
+    }
+
+    @Override
+    public void onLoadStarted(@Nullable Drawable placeholder) {
+        register();
+        super.onLoadStarted(placeholder);
+    }
+
+    @Override
+    public void onResourceReady(Drawable resource, @Nullable Transition<? super Drawable> transition) {
+        unregister();
+        super.onResourceReady(resource, transition);
+    }
+
+    @Override
+    public void onLoadFailed(@Nullable Drawable errorDrawable) {
+        unregister();
+        super.onLoadFailed(errorDrawable);
+    }
+
+    @Override
+    public void onLoadCleared(@Nullable Drawable placeholder) {
+        unregister();
+        super.onLoadCleared(placeholder);
+    }
+
+    /**
+     * 注册监听器，需要在into之前调用，避免请求已经发出才注册导致漏掉进度
+     * 暂停后重新开始的请求由onLoadStarted重新注册，所有调用都在主线程，不需要同步
+     */
+    void register() {
+        if (registered) return;
+        registered = true;
+        ProgressInterceptor.addListener(url, listener);
+        ProgressInterceptor.addListener(url, previewListener);
+    }
+
+    /**
+     * into之后调用：View上已有等价的请求时Glide直接复用旧请求，新请求不会设置给当前Target，
+     * 当前Target收不到任何回调，提前注册的监听器需要在这里移除
+     */
+    void unregisterIfUnused() {
+        if (!attached) unregister();
+    }
+
+    private void unregister() {
+        if (!registered) return;
+        registered = false;
+        ProgressInterceptor.removeListener(url, listener);
+        ProgressInterceptor.removeListener(url, previewListener);
+    }
+
+}
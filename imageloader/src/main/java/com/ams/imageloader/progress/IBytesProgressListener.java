@@ -0,0 +1,19 @@
+package com.ams.imageloader.progress;
+
+/**
+ * author: Ams
+ * Date: 2019/5/21
+ * Description: 按字节回调的加载进度监听，百分比变化时仍然会回调onProgress(int)
+ * 分块传输或压缩的响应没有Content-Length，此时为不确定进度，只能显示已读字节数和速度
+ */
+public interface IBytesProgressListener extends IProgressListener {
+
+    /**
+     * @param bytesRead      已读取的字节数
+     * @param contentLength  响应体总长度，没有Content-Length时为预估的长度，无法预估时为-1
+     * @param bytesPerSecond 平滑后的下载速度，字节/秒
+     * @param determinate    总长度是否来自Content-Length，为false时进度是预估的或未知的
+     */
+    void onProgress(long bytesRead, long contentLength, long bytesPerSecond, boolean determinate);
+
+}
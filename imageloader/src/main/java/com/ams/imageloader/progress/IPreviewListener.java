@@ -0,0 +1,17 @@
+package com.ams.imageloader.progress;
+
+import android.graphics.Bitmap;
+
+/**
+ * author: Ams
+ * Date: 2019/5/22
+ * Description: 渐进式JPEG预览监听，加载过程中用已收到的扫描解码出低分辨率的预览图，在主线程回调
+ */
+public interface IPreviewListener extends IProgressListener {
+
+    /**
+     * @param preview 预览图，分辨率低于最终图片，加载完成后不再回调
+     */
+    void onPreview(Bitmap preview);
+
+}
@@ -7,6 +7,9 @@ package com.ams.imageloader.progress;
  */
 public interface IProgressListener {
 
+    /**
+     * @param progress 0-100，总长度未知时只在加载完成时回调100，按预估长度计算时完成前最多为99
+     */
     void onProgress(int progress);
 
 }
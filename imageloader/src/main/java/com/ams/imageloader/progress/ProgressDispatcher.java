@@ -0,0 +1,168 @@
+package com.ams.imageloader.progress;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * author: Ams
+ * Date: 2019/5/21
+ * Description: 加载进度分发，OkHttp线程读取时只记录字节数，按帧合并后在主线程回调监听器，
+ * 同一帧内的多次读取只回调一次，读取过程中不分配内存
+ * 回调时才从注册表读取监听器，加载结束或被清除后移除的监听器不会再收到延迟的回调
+ */
+final class ProgressDispatcher implements Runnable, Choreographer.FrameCallback {
+
+    /**
+     * 一个响应体的进度，OkHttp线程写，分发线程读
+     */
+    static class Progress {
+        final String url;
+        final long contentLength;  // 总长度或预估长度，未知时为-1
+        final boolean determinate; // 总长度来自Content-Length
+        volatile long bytesRead;
+        volatile boolean completed;
+        // 已在待分发链表中，同一帧内不重复加入
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        Progress next;
+        // 以下字段只在分发线程访问
+        long lastBytesRead;
+        int lastProgress;
+        long lastTime;
+        long lastSpeedBytes;
+        long bytesPerSecond;
+        boolean finished;
+
+        Progress(String url, long contentLength, boolean determinate) {
+            this.url = url;
+            this.contentLength = contentLength;
+            this.determinate = determinate;
+        }
+    }
+
+    // 速度平滑系数，新的采样占的比例
+    private static final float SPEED_SMOOTHING = 0.3f;
+
+    private static final ProgressDispatcher INSTANCE = new ProgressDispatcher();
+
+    private static volatile boolean dispatchOnMainThread = true;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // 待分发的进度，以next串成的链表，入栈出栈都是CAS操作
+    private final AtomicReference<Progress> pending = new AtomicReference<>();
+
+    private ProgressDispatcher() {
+    }
+
+    static void setDispatchOnMainThread(boolean mainThread) {
+        dispatchOnMainThread = mainThread;
+    }
+
+    /**
+     * 在OkHttp线程调用，记录最新的字节数并安排分发
+     */
+    static void update(Progress progress, long bytesRead, boolean completed) {
+        progress.bytesRead = bytesRead;
+        if (completed) progress.completed = true;
+        if (!dispatchOnMainThread) {
+            // 不切换线程时直接在读取线程回调
+            deliver(progress);
+            return;
+        }
+        if (progress.scheduled.compareAndSet(false, true)) {
+            INSTANCE.enqueue(progress);
+        }
+    }
+
+    private void enqueue(Progress progress) {
+        Progress head;
+        do {
+            head = pending.get();
+            progress.next = head;
+        } while (!pending.compareAndSet(head, progress));
+        // 链表由空变为非空时安排下一帧，Choreographer只能在主线程使用
+        if (head == null) {
+            mainHandler.post(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        Progress progress = pending.getAndSet(null);
+        while (progress != null) {
+            Progress next = progress.next;
+            progress.next = null;
+            // 先清除标记再读取，之后的读取会重新加入链表，在下一帧分发
+            progress.scheduled.set(false);
+            deliver(progress);
+            progress = next;
+        }
+    }
+
+    private static void deliver(Progress progress) {
+        if (progress.finished) return;
+        long bytesRead = progress.bytesRead;
+        boolean completed = progress.completed;
+        if (bytesRead == progress.lastBytesRead && !completed) return;
+        progress.lastBytesRead = bytesRead;
+        progress.finished = completed;
+
+        updateSpeed(progress, bytesRead);
+
+        long contentLength = progress.contentLength;
+        int percent = computePercent(bytesRead, contentLength, progress.determinate, completed);
+        boolean percentChanged = percent != progress.lastProgress;
+        progress.lastProgress = percent;
+
+        IProgressListener[] listeners = ProgressInterceptor.getListeners(progress.url);
+        for (IProgressListener listener : listeners) {
+            if (listener instanceof IBytesProgressListener) {
+                ((IBytesProgressListener) listener).onProgress(bytesRead, contentLength,
+                        progress.bytesPerSecond, progress.determinate);
+            }
+            if (percentChanged) {
+                listener.onProgress(percent);
+            }
+        }
+    }
+
+    /**
+     * 百分比，长度未知时完成前为0，按预估长度计算时预估可能偏小，完成前最多为99
+     */
+    private static int computePercent(long bytesRead, long contentLength, boolean determinate, boolean completed) {
+        if (completed) return 100;
+        if (contentLength <= 0) return 0;
+        int percent = (int) (100f * bytesRead / contentLength);
+        return determinate ? Math.min(percent, 100) : Math.min(percent, 99);
+    }
+
+    /**
+     * 按两次分发之间读取的字节数计算速度，指数平滑避免每帧跳动
+     */
+    private static void updateSpeed(Progress progress, long bytesRead) {
+        long now = SystemClock.elapsedRealtime();
+        if (progress.lastTime == 0) {
+            // 第一次分发时还没有时间间隔，下一次开始计算
+            progress.lastTime = now;
+            progress.lastSpeedBytes = bytesRead;
+            return;
+        }
+        long elapsed = now - progress.lastTime;
+        if (elapsed <= 0) return;
+        long speed = (bytesRead - progress.lastSpeedBytes) * 1000 / elapsed;
+        progress.bytesPerSecond = progress.bytesPerSecond == 0 ? speed
+                : (long) (progress.bytesPerSecond * (1 - SPEED_SMOOTHING) + speed * SPEED_SMOOTHING);
+        progress.lastTime = now;
+        progress.lastSpeedBytes = bytesRead;
+    }
+
+}
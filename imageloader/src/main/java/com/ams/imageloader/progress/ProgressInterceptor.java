@@ -1,8 +1,11 @@
 package com.ams.imageloader.progress;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.Interceptor;
 import okhttp3.Request;
@@ -13,26 +16,148 @@ import okhttp3.ResponseBody;
  * author: Ams
  * Date: 2019/4/19
  * Description: 拦截器监听加载进度
+ * 监听器按地址分组，Glide会把同一地址同时进行的多次加载合并为一个请求，一个响应体分发给该地址下的所有监听器
  */
 public class ProgressInterceptor implements Interceptor {
 
-    static final Map<String, IProgressListener> LISTENER_MAP = new HashMap<>();
+    private static final IProgressListener[] EMPTY_LISTENERS = new IProgressListener[0];
 
+    // 地址 -> 监听器数组，数组不可修改，增删时整体替换（CAS），读取时不加锁也不分配内存
+    private static final ConcurrentMap<String, IProgressListener[]> LISTENER_MAP = new ConcurrentHashMap<>();
+
+    private static final int MAX_SIZE_HINTS = 64;
+
+    // 地址 -> 预估的文件长度，响应没有Content-Length时用于估算进度，按访问顺序淘汰
+    private static final Map<String, Long> SIZE_HINTS = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_SIZE_HINTS;
+        }
+    };
+
+    // 正在进行的图片加载请求数，从发出请求到响应体读完或关闭
+    private static final AtomicInteger ACTIVE_REQUESTS = new AtomicInteger();
+
+    /**
+     * 正在进行的图片加载请求数，下载原图时据此给前台加载让出带宽
+     */
+    public static int getActiveRequestCount() {
+        return ACTIVE_REQUESTS.get();
+    }
+
+    static void onRequestFinished() {
+        ACTIVE_REQUESTS.decrementAndGet();
+    }
+
+    /**
+     * 设置进度回调的线程，默认按帧合并后在主线程回调，设为false时在OkHttp的读取线程直接回调
+     */
+    public static void setDispatchOnMainThread(boolean mainThread) {
+        ProgressDispatcher.setDispatchOnMainThread(mainThread);
+    }
+
+    /**
+     * 设置地址的预估长度（如HEAD请求得到的长度），响应没有Content-Length时按此估算进度
+     */
+    public static void setSizeHint(String url, long size) {
+        if (url == null || size <= 0) return;
+        synchronized (SIZE_HINTS) {
+            SIZE_HINTS.put(url, size);
+        }
+    }
+
+    /**
+     * 地址的预估长度，没有时返回-1
+     */
+    static long getSizeHint(String url) {
+        synchronized (SIZE_HINTS) {
+            Long size = SIZE_HINTS.get(url);
+            return size != null ? size : -1;
+        }
+    }
+
+    /**
+     * 添加监听器，同一地址可以有多个监听器，每次加载注册一次，加载结束或被清除时需要移除
+     */
     public static void addListener(String url, IProgressListener listener) {
-        LISTENER_MAP.put(url, listener);
+        if (url == null || listener == null) return;
+        while (true) {
+            IProgressListener[] old = LISTENER_MAP.get(url);
+            if (old == null) {
+                if (LISTENER_MAP.putIfAbsent(url, new IProgressListener[]{listener}) == null) return;
+            } else {
+                IProgressListener[] listeners = new IProgressListener[old.length + 1];
+                System.arraycopy(old, 0, listeners, 0, old.length);
+                listeners[old.length] = listener;
+                if (LISTENER_MAP.replace(url, old, listeners)) return;
+            }
+        }
     }
 
+    /**
+     * 移除一次注册的监听器，同一个监听器注册了多次时只移除一次
+     */
+    public static void removeListener(String url, IProgressListener listener) {
+        if (url == null || listener == null) return;
+        while (true) {
+            IProgressListener[] old = LISTENER_MAP.get(url);
+            if (old == null) return;
+            int index = -1;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == listener) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) return;
+            if (old.length == 1) {
+                if (LISTENER_MAP.remove(url, old)) return;
+            } else {
+                IProgressListener[] listeners = new IProgressListener[old.length - 1];
+                System.arraycopy(old, 0, listeners, 0, index);
+                System.arraycopy(old, index + 1, listeners, index, old.length - index - 1);
+                if (LISTENER_MAP.replace(url, old, listeners)) return;
+            }
+        }
+    }
+
+    /**
+     * 移除该地址的所有监听器
+     */
     public static void removeListener(String url) {
+        if (url == null) return;
         LISTENER_MAP.remove(url);
     }
 
+    /**
+     * 当前注册在该地址上的监听器，返回的数组不能修改
+     */
+    static IProgressListener[] getListeners(String url) {
+        IProgressListener[] listeners = LISTENER_MAP.get(url);
+        return listeners != null ? listeners : EMPTY_LISTENERS;
+    }
+
     @Override
     public Response intercept(Chain chain) throws IOException {
         Request request = chain.request();
-        Response response = chain.proceed(request);
+        ACTIVE_REQUESTS.incrementAndGet();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException e) {
+            onRequestFinished();
+            throw e;
+        }
         String url = request.url().toString();
         ResponseBody body = response.body();
-        Response newResponse = response.newBuilder().body(new ProgressResponseBody(url, body)).build();
+        // 基础client配置了HTTP缓存时，缓存命中或重新验证返回304的响应体来自本地，不占用带宽
+        Response networkResponse = response.networkResponse();
+        boolean fromCache = networkResponse == null || networkResponse.code() == 304;
+        if (fromCache || body == null) {
+            onRequestFinished();
+        }
+        if (body == null) return response;
+        Response newResponse = response.newBuilder().body(new ProgressResponseBody(url, body, !fromCache)).build();
         return newResponse;
     }
 
@@ -1,6 +1,7 @@
 package com.ams.imageloader.progress;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import okhttp3.MediaType;
 import okhttp3.ResponseBody;
@@ -13,7 +14,7 @@ import okio.Source;
 /**
  * author: Ams
  * Date: 2019/4/19
- * Description: 监听加载进度
+ * Description: 监听加载进度，读取时只记录字节数，由ProgressDispatcher合并后回调
  */
 public class ProgressResponseBody extends ResponseBody {
 
@@ -21,11 +22,21 @@ public class ProgressResponseBody extends ResponseBody {
 
     private ResponseBody responseBody;
 
-    private IProgressListener listener;
+    private final String url;
+
+    private final AtomicBoolean finished = new AtomicBoolean();
 
     public ProgressResponseBody(String url, ResponseBody responseBody) {
+        this(url, responseBody, true);
+    }
+
+    /**
+     * @param countActive 是否计入正在进行的请求数，来自本地缓存的响应体不计入
+     */
+    ProgressResponseBody(String url, ResponseBody responseBody, boolean countActive) {
+        this.url = url;
         this.responseBody = responseBody;
-        listener = ProgressInterceptor.LISTENER_MAP.get(url);
+        finished.set(!countActive);
     }
 
     @Override
@@ -46,35 +57,64 @@ public class ProgressResponseBody extends ResponseBody {
         return bufferedSource;
     }
 
+    /**
+     * 响应体读完或关闭时，请求结束
+     */
+    private void finish() {
+        if (finished.compareAndSet(false, true)) {
+            ProgressInterceptor.onRequestFinished();
+        }
+    }
+
     private class ProgressSource extends ForwardingSource {
 
-        long totalBytesRead = 0;
+        final ProgressDispatcher.Progress progress;
+
+        // 有预览监听器时保存已收到的数据，用于解码渐进式JPEG的预览
+        ProgressivePreview preview;
 
-        int currentProgress;
+        long totalBytesRead = 0;
 
         ProgressSource(Source source) {
             super(source);
+            long contentLength = responseBody.contentLength();
+            if (contentLength >= 0) {
+                progress = new ProgressDispatcher.Progress(url, contentLength, true);
+            } else {
+                // 分块传输或压缩的响应没有长度，有预估长度时按预估长度计算
+                progress = new ProgressDispatcher.Progress(url, ProgressInterceptor.getSizeHint(url), false);
+            }
+            if (ProgressivePreview.isRequested(url)) {
+                preview = new ProgressivePreview(url);
+            }
         }
 
         @Override
         public long read(Buffer sink, long byteCount) throws IOException {
             long bytesRead = super.read(sink, byteCount);
-            long fullLength = responseBody.contentLength();
             if (bytesRead == -1) {
-                totalBytesRead = fullLength;
+                finish();
+                if (preview != null) preview.complete();
             } else {
                 totalBytesRead += bytesRead;
+                if (preview != null && !preview.isDisabled()) {
+                    sink.copyTo(preview, sink.size() - bytesRead, bytesRead);
+                    preview.onDataAppended();
+                }
             }
-            int progress = (int) (100f * totalBytesRead / fullLength);
-            if (listener != null && progress != currentProgress) {
-                listener.onProgress(progress);
+            // 没有监听器时不安排分发，加载中途合并进来的监听器从下一次读取开始收到进度
+            if (ProgressInterceptor.getListeners(url).length > 0) {
+                ProgressDispatcher.update(progress, totalBytesRead, bytesRead == -1);
             }
-            if (listener != null && totalBytesRead == fullLength) {
-                listener = null;
-            }
-            currentProgress = progress;
             return bytesRead;
         }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            if (preview != null) preview.complete();
+            super.close();
+        }
     }
 
 }
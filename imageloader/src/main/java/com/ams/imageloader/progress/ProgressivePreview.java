@@ -0,0 +1,255 @@
+package com.ams.imageloader.progress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * author: Ams
+ * Date: 2019/5/22
+ * Description: 渐进式JPEG预览，响应体读取时保存已收到的数据，每完成一次扫描（遇到下一个SOS标记）
+ * 在后台线程解码一张低分辨率的预览图，限制间隔和次数，只处理渐进式JPEG（SOF2），其它格式直接放弃
+ * 响应体可能在其它线程被关闭，写入、解析和释放缓冲区都在同一把锁内进行，读取线程不会看到已释放的缓冲区
+ */
+class ProgressivePreview extends OutputStream {
+
+    private static final int MAX_BUFFER_SIZE = 8 * 1024 * 1024; // 超过后放弃预览，避免大图占用过多内存
+    private static final int MAX_PREVIEWS = 4;                  // 每张图片最多解码的预览次数
+    private static final long MIN_INTERVAL = 300;               // 两次预览的最小间隔（毫秒）
+    private static final int PREVIEW_MAX_SIZE = 512;            // 预览图的最大边长
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    // 预览解码线程，解码较慢，不占用网络读取线程
+    private static final ThreadPoolExecutor DECODE_EXECUTOR = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    private final String url;
+    private byte[] buf = new byte[16 * 1024];
+    private int count;
+    private volatile boolean disabled;
+    private volatile boolean completed;
+    // 文件头解析位置，找到第一个SOS标记之前有效
+    private int headerPos;
+    private boolean headerParsed;
+    private boolean progressive;
+    // 扫描数据中查找SOS标记的位置
+    private int scanPos;
+    // 最近一次扫描开始的位置，之前的数据包含完整的扫描
+    private int lastScanStart;
+    private int decodedScanStart;
+    private int previewCount;
+    private long lastPreviewTime;
+    private final AtomicBoolean decoding = new AtomicBoolean();
+
+    ProgressivePreview(String url) {
+        this.url = url;
+    }
+
+    /**
+     * 响应中有预览监听器时才需要预览
+     */
+    static boolean isRequested(String url) {
+        for (IProgressListener listener : ProgressInterceptor.getListeners(url)) {
+            if (listener instanceof IPreviewListener) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (disabled) return;
+        ensureCapacity(count + 1);
+        if (disabled) return;
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (disabled) return;
+        ensureCapacity(count + len);
+        if (disabled) return;
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    boolean isDisabled() {
+        return disabled;
+    }
+
+    /**
+     * 新数据写入后调用，在读取线程执行
+     */
+    synchronized void onDataAppended() {
+        if (disabled) return;
+        if (!headerParsed) {
+            parseHeader();
+            if (disabled || !headerParsed) return;
+        }
+        findScans();
+        maybeDecode();
+    }
+
+    /**
+     * 响应体读完，最终图片由Glide解码，不再预览
+     */
+    synchronized void complete() {
+        completed = true;
+        release();
+    }
+
+    private void release() {
+        disabled = true;
+        // 正在解码的任务持有自己的数组引用，这里只释放缓冲区
+        buf = null;
+        count = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= buf.length) return;
+        if (capacity > MAX_BUFFER_SIZE) {
+            release();
+            return;
+        }
+        int newLength = Math.min(Math.max(buf.length * 2, capacity), MAX_BUFFER_SIZE);
+        byte[] newBuf = new byte[newLength];
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        buf = newBuf;
+    }
+
+    /**
+     * 按段解析文件头直到第一个SOS，确认是渐进式JPEG（SOF2），
+     * 不能直接查找标记，EXIF中的缩略图也包含SOF和SOS
+     */
+    private void parseHeader() {
+        if (headerPos == 0) {
+            if (count < 2) return;
+            if ((buf[0] & 0xFF) != 0xFF || (buf[1] & 0xFF) != 0xD8) {
+                release();
+                return;
+            }
+            headerPos = 2;
+        }
+        while (headerPos + 4 <= count) {
+            if ((buf[headerPos] & 0xFF) != 0xFF) {
+                release();
+                return;
+            }
+            int marker = buf[headerPos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // 填充字节
+                headerPos++;
+                continue;
+            }
+            if (marker == 0xDA) {
+                if (!progressive) {
+                    release();
+                    return;
+                }
+                headerParsed = true;
+                // 第一个SOS之前只有文件头，没有可解码的扫描，等到第二个SOS出现才解码
+                lastScanStart = headerPos;
+                decodedScanStart = headerPos;
+                scanPos = headerPos + 2;
+                return;
+            }
+            if (marker == 0xC2) {
+                progressive = true;
+            } else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // 其它SOF，基线或无损JPEG，部分数据只能解出上半部分，不做预览
+                release();
+                return;
+            }
+            int length = ((buf[headerPos + 2] & 0xFF) << 8) | (buf[headerPos + 3] & 0xFF);
+            headerPos += 2 + length;
+        }
+    }
+
+    /**
+     * 扫描数据中0xFF后面跟0x00（填充），所以0xFFDA只会是新扫描的开始
+     */
+    private void findScans() {
+        int end = count - 1;
+        for (int i = scanPos; i < end; i++) {
+            if (buf[i] == (byte) 0xFF && buf[i + 1] == (byte) 0xDA) {
+                lastScanStart = i;
+            }
+        }
+        scanPos = Math.max(scanPos, end);
+    }
+
+    private void maybeDecode() {
+        // 第一次扫描完成之前没有可显示的内容
+        if (lastScanStart <= decodedScanStart || completed) return;
+        if (previewCount >= MAX_PREVIEWS) {
+            release();
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (previewCount > 0 && now - lastPreviewTime < MIN_INTERVAL) return;
+        if (!decoding.compareAndSet(false, true)) return;
+        decodedScanStart = lastScanStart;
+        lastPreviewTime = now;
+        previewCount++;
+        // 数组只会在尾部追加，扩容时换新数组，解码范围内的数据不会再变化
+        final byte[] data = buf;
+        final int length = lastScanStart;
+        DECODE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Bitmap preview = decode(data, length);
+                    if (preview == null) return;
+                    MAIN_HANDLER.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            dispatch(preview);
+                        }
+                    });
+                } finally {
+                    decoding.set(false);
+                }
+            }
+        });
+    }
+
+    private void dispatch(Bitmap preview) {
+        // 解码期间响应体已读完，最终图片马上就会显示
+        if (completed) return;
+        for (IProgressListener listener : ProgressInterceptor.getListeners(url)) {
+            if (listener instanceof IPreviewListener) {
+                ((IPreviewListener) listener).onPreview(preview);
+            }
+        }
+    }
+
+    private static Bitmap decode(byte[] data, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        int sampleSize = 1;
+        int maxSide = Math.max(options.outWidth, options.outHeight);
+        while (maxSide / sampleSize > PREVIEW_MAX_SIZE) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        try {
+            // 数据不完整时解码器会用已有的扫描生成整张图片
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+}
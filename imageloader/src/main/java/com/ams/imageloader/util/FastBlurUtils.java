@@ -8,19 +8,64 @@ import android.graphics.drawable.BitmapDrawable;
 import android.util.Log;
 import android.view.View;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * author: Ams
  * Date: 2019/4/25
  * Description: 处理高斯模糊的工具类
+ * stack blur按行、按列分段在多个线程中计算，缓冲区和除法查找表复用
  */
 public class FastBlurUtils {
 
+    private static final int MAX_RADIUS = 25;
+    private static final int MAX_DIV = MAX_RADIUS + MAX_RADIUS + 1;
+    // 像素数少于此值时不拆分，线程切换的开销比计算还大
+    private static final int MIN_PARALLEL_PIXELS = 128 * 128;
+    // 超过此大小的缓冲区用完就释放，不长期占用内存
+    private static final int MAX_POOLED_PIXELS = 512 * 512;
+    private static final int THREAD_COUNT = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    // 除法查找表，按半径缓存，同一半径只计算一次
+    private static final int[][] DV_CACHE = new int[MAX_RADIUS + 1][];
+    // 复用上一次的缓冲区，同时有多个模糊时其它调用自己分配
+    private static final AtomicReference<Scratch> SCRATCH_POOL = new AtomicReference<>();
+    private static volatile ExecutorService executor;
+
+    /**
+     * 一次模糊使用的缓冲区
+     */
+    private static class Scratch {
+        int[] pix = new int[0];
+        int[] rgb = new int[0];    // 横向模糊的结果，r、g、b合并在一个int中
+        int[] vminX = new int[0];
+        int[] vminY = new int[0];
+        final int[][] stacks = new int[THREAD_COUNT][MAX_DIV * 3];
+    }
+
+    /**
+     * 分段执行的任务
+     */
+    private interface RangeTask {
+        void run(int part, int start, int end);
+    }
+
     public static Bitmap doBlur(Bitmap sentBitmap, int radius, boolean canReuseInBitmap) {
 
         long startTime = System.currentTimeMillis();
 
         if (radius < 1) radius = 1;
-        if (radius > 25) radius = 25;
+        if (radius > MAX_RADIUS) radius = MAX_RADIUS;
 
         Bitmap bitmap;
         if (canReuseInBitmap) {
@@ -32,137 +77,181 @@ public class FastBlurUtils {
         int w = bitmap.getWidth();
         int h = bitmap.getHeight();
 
-        int[] pix = new int[w * h];
+        Scratch scratch = obtainScratch(w, h);
+        int[] pix = scratch.pix;
         bitmap.getPixels(pix, 0, w, 0, 0, w, h);
 
-        int wm = w - 1;
-        int hm = h - 1;
-        int wh = w * h;
-        int div = radius + radius + 1;
+        blur(scratch, w, h, radius);
+
+        bitmap.setPixels(pix, 0, w, 0, 0, w, h);
+        releaseScratch(scratch);
+
+        Log.d("log_test", "blur time: " + (System.currentTimeMillis() - startTime));
+
+        return (bitmap);
+    }
 
-        int r[] = new int[wh];
-        int g[] = new int[wh];
-        int b[] = new int[wh];
-        int rsum, gsum, bsum, x, y, i, p, yp, yi, yw;
-        int vmin[] = new int[Math.max(w, h)];
-
-        int divsum = (div + 1) >> 1;
-        divsum *= divsum;
-        int dv[] = new int[256 * divsum];
-        for (i = 0; i < 256 * divsum; i++) {
-            dv[i] = (i / divsum);
+    /**
+     * 对scratch.pix中的像素做stack blur，先按行分段做横向模糊，全部完成后再按列分段做纵向模糊，
+     * 每行（列）的计算互不依赖，结果与单线程完全一致
+     */
+    private static void blur(final Scratch scratch, final int w, final int h, final int radius) {
+        final int wm = w - 1;
+        final int hm = h - 1;
+        final int r1 = radius + 1;
+        final int[] dv = getDivTable(radius);
+        // 每行（列）相同的边界下标，提前算好供所有线程共用
+        final int[] vminX = scratch.vminX;
+        final int[] vminY = scratch.vminY;
+        for (int x = 0; x < w; x++) {
+            vminX[x] = Math.min(x + radius + 1, wm);
+        }
+        for (int y = 0; y < h; y++) {
+            vminY[y] = Math.min(y + r1, hm) * w;
         }
 
-        yw = yi = 0;
+        int parts = w * h < MIN_PARALLEL_PIXELS ? 1 : THREAD_COUNT;
+        runInParallel(Math.min(parts, h), h, new RangeTask() {
+            @Override
+            public void run(int part, int start, int end) {
+                blurRows(scratch.pix, scratch.rgb, scratch.stacks[part], dv, vminX, w, radius, start, end);
+            }
+        });
+        runInParallel(Math.min(parts, w), w, new RangeTask() {
+            @Override
+            public void run(int part, int start, int end) {
+                blurColumns(scratch.pix, scratch.rgb, scratch.stacks[part], dv, vminY, w, hm, radius, start, end);
+            }
+        });
+    }
 
-        int[][] stack = new int[div][3];
+    /**
+     * 横向模糊[yStart, yEnd)行，读取pix，结果写入rgb
+     */
+    private static void blurRows(int[] pix, int[] rgb, int[] stack, int[] dv, int[] vmin,
+                                 int w, int radius, int yStart, int yEnd) {
+        int wm = w - 1;
+        int div = radius + radius + 1;
+        int r1 = radius + 1;
+        int rsum, gsum, bsum, x, y, i, p, yi, yw, s;
         int stackpointer;
         int stackstart;
-        int[] sir;
         int rbs;
-        int r1 = radius + 1;
         int routsum, goutsum, boutsum;
         int rinsum, ginsum, binsum;
 
-        for (y = 0; y < h; y++) {
+        for (y = yStart; y < yEnd; y++) {
+            yw = yi = y * w;
             rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
             for (i = -radius; i <= radius; i++) {
                 p = pix[yi + Math.min(wm, Math.max(i, 0))];
-                sir = stack[i + radius];
-                sir[0] = (p & 0xff0000) >> 16;
-                sir[1] = (p & 0x00ff00) >> 8;
-                sir[2] = (p & 0x0000ff);
+                s = (i + radius) * 3;
+                stack[s] = (p & 0xff0000) >> 16;
+                stack[s + 1] = (p & 0x00ff00) >> 8;
+                stack[s + 2] = (p & 0x0000ff);
                 rbs = r1 - Math.abs(i);
-                rsum += sir[0] * rbs;
-                gsum += sir[1] * rbs;
-                bsum += sir[2] * rbs;
+                rsum += stack[s] * rbs;
+                gsum += stack[s + 1] * rbs;
+                bsum += stack[s + 2] * rbs;
                 if (i > 0) {
-                    rinsum += sir[0];
-                    ginsum += sir[1];
-                    binsum += sir[2];
+                    rinsum += stack[s];
+                    ginsum += stack[s + 1];
+                    binsum += stack[s + 2];
                 } else {
-                    routsum += sir[0];
-                    goutsum += sir[1];
-                    boutsum += sir[2];
+                    routsum += stack[s];
+                    goutsum += stack[s + 1];
+                    boutsum += stack[s + 2];
                 }
             }
             stackpointer = radius;
 
             for (x = 0; x < w; x++) {
 
-                r[yi] = dv[rsum];
-                g[yi] = dv[gsum];
-                b[yi] = dv[bsum];
+                rgb[yi] = (dv[rsum] << 16) | (dv[gsum] << 8) | dv[bsum];
 
                 rsum -= routsum;
                 gsum -= goutsum;
                 bsum -= boutsum;
 
                 stackstart = stackpointer - radius + div;
-                sir = stack[stackstart % div];
+                s = (stackstart % div) * 3;
 
-                routsum -= sir[0];
-                goutsum -= sir[1];
-                boutsum -= sir[2];
+                routsum -= stack[s];
+                goutsum -= stack[s + 1];
+                boutsum -= stack[s + 2];
 
-                if (y == 0) {
-                    vmin[x] = Math.min(x + radius + 1, wm);
-                }
                 p = pix[yw + vmin[x]];
 
-                sir[0] = (p & 0xff0000) >> 16;
-                sir[1] = (p & 0x00ff00) >> 8;
-                sir[2] = (p & 0x0000ff);
+                stack[s] = (p & 0xff0000) >> 16;
+                stack[s + 1] = (p & 0x00ff00) >> 8;
+                stack[s + 2] = (p & 0x0000ff);
 
-                rinsum += sir[0];
-                ginsum += sir[1];
-                binsum += sir[2];
+                rinsum += stack[s];
+                ginsum += stack[s + 1];
+                binsum += stack[s + 2];
 
                 rsum += rinsum;
                 gsum += ginsum;
                 bsum += binsum;
 
                 stackpointer = (stackpointer + 1) % div;
-                sir = stack[(stackpointer) % div];
+                s = stackpointer * 3;
 
-                routsum += sir[0];
-                goutsum += sir[1];
-                boutsum += sir[2];
+                routsum += stack[s];
+                goutsum += stack[s + 1];
+                boutsum += stack[s + 2];
 
-                rinsum -= sir[0];
-                ginsum -= sir[1];
-                binsum -= sir[2];
+                rinsum -= stack[s];
+                ginsum -= stack[s + 1];
+                binsum -= stack[s + 2];
 
                 yi++;
             }
-            yw += w;
         }
-        for (x = 0; x < w; x++) {
+    }
+
+    /**
+     * 纵向模糊[xStart, xEnd)列，读取rgb，结果写回pix，保留原来的透明度
+     */
+    private static void blurColumns(int[] pix, int[] rgb, int[] stack, int[] dv, int[] vmin,
+                                    int w, int hm, int radius, int xStart, int xEnd) {
+        int h = hm + 1;
+        int div = radius + radius + 1;
+        int r1 = radius + 1;
+        int rsum, gsum, bsum, x, y, i, p, yp, yi, s, c;
+        int stackpointer;
+        int stackstart;
+        int rbs;
+        int routsum, goutsum, boutsum;
+        int rinsum, ginsum, binsum;
+
+        for (x = xStart; x < xEnd; x++) {
             rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
             yp = -radius * w;
             for (i = -radius; i <= radius; i++) {
                 yi = Math.max(0, yp) + x;
 
-                sir = stack[i + radius];
+                s = (i + radius) * 3;
 
-                sir[0] = r[yi];
-                sir[1] = g[yi];
-                sir[2] = b[yi];
+                c = rgb[yi];
+                stack[s] = c >> 16;
+                stack[s + 1] = (c >> 8) & 0xff;
+                stack[s + 2] = c & 0xff;
 
                 rbs = r1 - Math.abs(i);
 
-                rsum += r[yi] * rbs;
-                gsum += g[yi] * rbs;
-                bsum += b[yi] * rbs;
+                rsum += stack[s] * rbs;
+                gsum += stack[s + 1] * rbs;
+                bsum += stack[s + 2] * rbs;
 
                 if (i > 0) {
-                    rinsum += sir[0];
-                    ginsum += sir[1];
-                    binsum += sir[2];
+                    rinsum += stack[s];
+                    ginsum += stack[s + 1];
+                    binsum += stack[s + 2];
                 } else {
-                    routsum += sir[0];
-                    goutsum += sir[1];
-                    boutsum += sir[2];
+                    routsum += stack[s];
+                    goutsum += stack[s + 1];
+                    boutsum += stack[s + 2];
                 }
 
                 if (i < hm) {
@@ -180,49 +269,148 @@ public class FastBlurUtils {
                 bsum -= boutsum;
 
                 stackstart = stackpointer - radius + div;
-                sir = stack[stackstart % div];
+                s = (stackstart % div) * 3;
 
-                routsum -= sir[0];
-                goutsum -= sir[1];
-                boutsum -= sir[2];
+                routsum -= stack[s];
+                goutsum -= stack[s + 1];
+                boutsum -= stack[s + 2];
 
-                if (x == 0) {
-                    vmin[y] = Math.min(y + r1, hm) * w;
-                }
                 p = x + vmin[y];
 
-                sir[0] = r[p];
-                sir[1] = g[p];
-                sir[2] = b[p];
+                c = rgb[p];
+                stack[s] = c >> 16;
+                stack[s + 1] = (c >> 8) & 0xff;
+                stack[s + 2] = c & 0xff;
 
-                rinsum += sir[0];
-                ginsum += sir[1];
-                binsum += sir[2];
+                rinsum += stack[s];
+                ginsum += stack[s + 1];
+                binsum += stack[s + 2];
 
                 rsum += rinsum;
                 gsum += ginsum;
                 bsum += binsum;
 
                 stackpointer = (stackpointer + 1) % div;
-                sir = stack[stackpointer];
+                s = stackpointer * 3;
 
-                routsum += sir[0];
-                goutsum += sir[1];
-                boutsum += sir[2];
+                routsum += stack[s];
+                goutsum += stack[s + 1];
+                boutsum += stack[s + 2];
 
-                rinsum -= sir[0];
-                ginsum -= sir[1];
-                binsum -= sir[2];
+                rinsum -= stack[s];
+                ginsum -= stack[s + 1];
+                binsum -= stack[s + 2];
 
                 yi += w;
             }
         }
+    }
 
-        bitmap.setPixels(pix, 0, w, 0, 0, w, h);
+    /**
+     * 把[0, length)平均分成parts段并行执行，调用线程执行第一段，全部完成后返回
+     */
+    private static void runInParallel(int parts, int length, final RangeTask task) {
+        if (parts <= 1) {
+            task.run(0, 0, length);
+            return;
+        }
+        ExecutorService executor = getExecutor();
+        List<Future<?>> futures = new ArrayList<>(parts - 1);
+        for (int part = 1; part < parts; part++) {
+            final int index = part;
+            final int start = length * part / parts;
+            final int end = length * (part + 1) / parts;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(index, start, end);
+                }
+            }));
+        }
+        task.run(0, 0, length / parts);
+        // 后一趟依赖前一趟的全部结果，必须等所有分段完成，中断也要等完，避免其它线程还在写缓冲区
+        boolean interrupted = false;
+        try {
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        if (cause instanceof Error) throw (Error) cause;
+                        throw new IllegalStateException(cause);
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
 
-        Log.d("log_test", "blur time: " + (System.currentTimeMillis() - startTime));
+    private static ExecutorService getExecutor() {
+        if (executor == null) {
+            synchronized (FastBlurUtils.class) {
+                if (executor == null) {
+                    // 调用线程也参与计算，线程池只需要THREAD_COUNT - 1个线程，空闲时回收
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(THREAD_COUNT - 1, THREAD_COUNT - 1,
+                            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "fast-blur-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = pool;
+                }
+            }
+        }
+        return executor;
+    }
 
-        return (bitmap);
+    /**
+     * 除法查找表，dv[i] = i / divsum
+     */
+    private static int[] getDivTable(int radius) {
+        synchronized (DV_CACHE) {
+            int[] dv = DV_CACHE[radius];
+            if (dv == null) {
+                int div = radius + radius + 1;
+                int divsum = (div + 1) >> 1;
+                divsum *= divsum;
+                dv = new int[256 * divsum];
+                for (int i = 0; i < 256 * divsum; i++) {
+                    dv[i] = (i / divsum);
+                }
+                DV_CACHE[radius] = dv;
+            }
+            return dv;
+        }
+    }
+
+    private static Scratch obtainScratch(int w, int h) {
+        Scratch scratch = SCRATCH_POOL.getAndSet(null);
+        if (scratch == null) scratch = new Scratch();
+        int wh = w * h;
+        if (scratch.pix.length < wh) {
+            scratch.pix = new int[wh];
+            scratch.rgb = new int[wh];
+        }
+        if (scratch.vminX.length < w) scratch.vminX = new int[w];
+        if (scratch.vminY.length < h) scratch.vminY = new int[h];
+        return scratch;
+    }
+
+    private static void releaseScratch(Scratch scratch) {
+        if (scratch.pix.length > MAX_POOLED_PIXELS) return;
+        SCRATCH_POOL.set(scratch);
     }
 
     /**
@@ -1,5 +1,9 @@
 package com.ams.imageloader.util;
 
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -11,6 +15,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -317,6 +322,102 @@ public class FileUtils {
         return copyOrMoveFile(srcFile, destFile, listener, false);
     }
 
+    /**
+     * Copy the file by {@link FileChannel#transferTo}, letting the kernel move the bytes
+     * without passing them through a java buffer.
+     *
+     * @param srcFile  The source file.
+     * @param destFile The destination file.
+     * @return {@code true}: success<br>{@code false}: fail
+     */
+    public static boolean transferFile(final File srcFile,
+                                       final File destFile) {
+        if (srcFile == null || destFile == null) return false;
+        if (srcFile.equals(destFile)) return false;
+        if (!srcFile.exists() || !srcFile.isFile()) return false;
+        if (destFile.exists() && !destFile.delete()) return false;
+        if (!createOrExistsDir(destFile.getParentFile())) return false;
+        FileInputStream is = null;
+        FileOutputStream os = null;
+        try {
+            is = new FileInputStream(srcFile);
+            os = new FileOutputStream(destFile);
+            FileChannel in = is.getChannel();
+            FileChannel out = os.getChannel();
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long count = in.transferTo(position, size - position, out);
+                if (count <= 0) break;
+                position += count;
+            }
+            return position == size;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                if (is != null) is.close();
+                if (os != null) os.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Hard link the file, or copy it by {@link #transferFile} if hard link is unsupported.
+     * <p>Hard link needs API 21 and both files on the same file system.</p>
+     *
+     * @param srcFile  The source file.
+     * @param destFile The destination file.
+     * @return {@code true}: success<br>{@code false}: fail
+     */
+    public static boolean linkOrCopyFile(final File srcFile,
+                                         final File destFile) {
+        if (srcFile == null || destFile == null) return false;
+        if (srcFile.equals(destFile)) return false;
+        if (!srcFile.exists() || !srcFile.isFile()) return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (destFile.exists() && !destFile.delete()) return false;
+            if (!createOrExistsDir(destFile.getParentFile())) return false;
+            try {
+                Os.link(srcFile.getAbsolutePath(), destFile.getAbsolutePath());
+                return true;
+            } catch (ErrnoException e) {
+                // different file system or unsupported, fall back to copy
+            }
+        }
+        return transferFile(srcFile, destFile) || copyFile(srcFile, destFile);
+    }
+
+    /**
+     * Hard link or copy the file into a sidecar temp file, then rename it to the destination,
+     * so that the destination never exists half-written.
+     * <p>The temp file name is unique, so it never collides with a download in flight to the same
+     * destination, whose temp file is {@code destFile + ".part"}.</p>
+     *
+     * @param srcFile  The source file.
+     * @param destFile The destination file.
+     * @return {@code true}: success<br>{@code false}: fail
+     */
+    public static boolean linkOrCopyFileAtomically(final File srcFile,
+                                                   final File destFile) {
+        if (srcFile == null || destFile == null) return false;
+        if (!createOrExistsDir(destFile.getAbsoluteFile().getParentFile())) return false;
+        File tempFile;
+        try {
+            tempFile = File.createTempFile(destFile.getName() + ".part.", "",
+                    destFile.getAbsoluteFile().getParentFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (linkOrCopyFile(srcFile, tempFile) && tempFile.renameTo(destFile)) return true;
+        tempFile.delete();
+        return false;
+    }
+
     /**
      * Move the directory.
      *
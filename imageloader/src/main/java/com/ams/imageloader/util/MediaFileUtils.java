@@ -45,8 +45,10 @@ public class MediaFileUtils {
     public static final int FILE_TYPE_PNG = 33;
     public static final int FILE_TYPE_BMP = 34;
     public static final int FILE_TYPE_WBMP = 35;
+    public static final int FILE_TYPE_WEBP = 36;
+    public static final int FILE_TYPE_HEIF = 37;
     private static final int FIRST_IMAGE_FILE_TYPE = FILE_TYPE_JPEG;
-    private static final int LAST_IMAGE_FILE_TYPE = FILE_TYPE_WBMP;
+    private static final int LAST_IMAGE_FILE_TYPE = FILE_TYPE_HEIF;
 
     // Playlist
     public static final int FILE_TYPE_M3U = 41;
@@ -72,6 +74,10 @@ public class MediaFileUtils {
     private static HashMap<String, Integer> sMimeTypeMap
             = new HashMap<String, Integer>();
 
+    // 与sFileTypeMap内容相同，按后缀查找时逐个比较，不需要截取和转换大小写
+    private static String[] sExtensions;
+    private static MediaFileType[] sExtensionTypes;
+
     static void addFileType(String extension, int fileType, String mimeType) {
         sFileTypeMap.put(extension, new MediaFileType(fileType, mimeType));
         sMimeTypeMap.put(mimeType, new Integer(fileType));
@@ -106,6 +112,9 @@ public class MediaFileUtils {
         addFileType("PNG", FILE_TYPE_PNG, "image/png");
         addFileType("BMP", FILE_TYPE_BMP, "image/x-ms-bmp");
         addFileType("WBMP", FILE_TYPE_WBMP, "image/vnd.wap.wbmp");
+        addFileType("WEBP", FILE_TYPE_WEBP, "image/webp");
+        addFileType("HEIC", FILE_TYPE_HEIF, "image/heif");
+        addFileType("HEIF", FILE_TYPE_HEIF, "image/heif");
 
         addFileType("M3U", FILE_TYPE_M3U, "audio/x-mpegurl");
         addFileType("PLS", FILE_TYPE_PLS, "audio/x-scpls");
@@ -122,6 +131,12 @@ public class MediaFileUtils {
             builder.append(iterator.next());
         }
         sFileExtensions = builder.toString();
+
+        sExtensions = sFileTypeMap.keySet().toArray(new String[sFileTypeMap.size()]);
+        sExtensionTypes = new MediaFileType[sExtensions.length];
+        for (int i = 0; i < sExtensions.length; i++) {
+            sExtensionTypes[i] = sFileTypeMap.get(sExtensions[i]);
+        }
     }
 
     public static final String UNKNOWN_STRING = "<unknown>";
@@ -149,10 +164,26 @@ public class MediaFileUtils {
     }
 
     public static MediaFileType getFileType(String path) {
-        int lastDot = path.lastIndexOf(".");
-        if (lastDot < 0)
+        int lastDot = path.lastIndexOf('.');
+        if (lastDot < 0 || lastDot < path.lastIndexOf('/'))
             return null;
-        return sFileTypeMap.get(path.substring(lastDot + 1).toUpperCase());
+        // 忽略大小写比较后缀，不分配新字符串
+        int start = lastDot + 1;
+        int length = path.length() - start;
+        for (int i = 0; i < sExtensions.length; i++) {
+            String extension = sExtensions[i];
+            if (extension.length() == length && path.regionMatches(true, start, extension, 0, length)) {
+                return sExtensionTypes[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 根据后缀或内容类型判断是否为图片或视频，后缀识别不了时使用mimeType（如保存时没有后缀）
+     */
+    public static boolean isMediaFile(String path, String mimeType) {
+        return isImageFileType(path) || isVideoFileType(path) || MimeSniffer.isMediaMimeType(mimeType);
     }
 
     //根据视频文件路径判断文件类型
@@ -0,0 +1,130 @@
+package com.ams.imageloader.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * author: Ams
+ * Date: 2019/5/30
+ * Description: 根据文件头的魔数判断文件类型
+ * 下载时直接使用已在缓冲区中的前几个字节，不需要再读一次文件；识别不了时使用响应的Content-Type
+ */
+public class MimeSniffer {
+
+    /**
+     * 判断文件类型需要的字节数
+     */
+    public static final int SNIFF_LENGTH = 16;
+
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] GIF87A = {'G', 'I', 'F', '8', '7', 'a'};
+    private static final byte[] GIF89A = {'G', 'I', 'F', '8', '9', 'a'};
+    private static final byte[] RIFF = {'R', 'I', 'F', 'F'};
+    private static final byte[] WEBP = {'W', 'E', 'B', 'P'};
+    private static final byte[] BMP = {'B', 'M'};
+    private static final byte[] FTYP = {'f', 't', 'y', 'p'};
+    // HEIF/HEIC的ftyp品牌
+    private static final byte[][] HEIF_BRANDS = {
+            {'h', 'e', 'i', 'c'}, {'h', 'e', 'i', 'x'}, {'h', 'e', 'v', 'c'}, {'h', 'e', 'v', 'x'},
+            {'h', 'e', 'i', 'm'}, {'h', 'e', 'i', 's'}, {'m', 'i', 'f', '1'}, {'m', 's', 'f', '1'}};
+    private static final byte[][] AVIF_BRANDS = {{'a', 'v', 'i', 'f'}, {'a', 'v', 'i', 's'}};
+    private static final byte[] BRAND_3GP = {'3', 'g'};
+    // MP4视频的ftyp品牌，其它ISO-BMFF品牌（如新的图片格式）识别不了，返回null
+    private static final byte[][] MP4_BRANDS = {
+            {'i', 's', 'o', 'm'}, {'i', 's', 'o', '2'}, {'i', 's', 'o', '4'}, {'i', 's', 'o', '5'},
+            {'i', 's', 'o', '6'}, {'m', 'p', '4', '1'}, {'m', 'p', '4', '2'}, {'a', 'v', 'c', '1'},
+            {'m', 'm', 'p', '4'}, {'d', 'a', 's', 'h'}, {'M', '4', 'V', ' '}, {'M', '4', 'V', 'H'}};
+
+    private MimeSniffer() {
+    }
+
+    /**
+     * 根据文件头判断mimeType，识别不了时返回null
+     *
+     * @param data   文件开头的数据
+     * @param offset 数据在数组中的起始位置
+     * @param length 可用的字节数，至少需要{@link #SNIFF_LENGTH}个字节才能识别所有类型
+     */
+    public static String sniff(byte[] data, int offset, int length) {
+        if (data == null || length <= 0) return null;
+        if (startsWith(data, offset, length, 0, JPEG)) return "image/jpeg";
+        if (startsWith(data, offset, length, 0, PNG)) return "image/png";
+        if (startsWith(data, offset, length, 0, GIF87A) || startsWith(data, offset, length, 0, GIF89A)) {
+            return "image/gif";
+        }
+        if (startsWith(data, offset, length, 0, RIFF) && startsWith(data, offset, length, 8, WEBP)) {
+            return "image/webp";
+        }
+        if (startsWith(data, offset, length, 4, FTYP)) {
+            for (byte[] brand : HEIF_BRANDS) {
+                if (startsWith(data, offset, length, 8, brand)) return "image/heif";
+            }
+            for (byte[] brand : AVIF_BRANDS) {
+                if (startsWith(data, offset, length, 8, brand)) return "image/avif";
+            }
+            if (startsWith(data, offset, length, 8, BRAND_3GP)) return "video/3gpp";
+            for (byte[] brand : MP4_BRANDS) {
+                if (startsWith(data, offset, length, 8, brand)) return "video/mp4";
+            }
+            return null;
+        }
+        if (startsWith(data, offset, length, 0, BMP)) return "image/x-ms-bmp";
+        return null;
+    }
+
+    /**
+     * 读取文件开头的几个字节判断mimeType，用于没有下载缓冲区可用的场景（如从缓存拷贝）
+     */
+    public static String sniff(File file) {
+        byte[] data = new byte[SNIFF_LENGTH];
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            int length = 0;
+            while (length < data.length) {
+                int len = is.read(data, length, data.length - length);
+                if (len == -1) break;
+                length += len;
+            }
+            return sniff(data, 0, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (is != null) is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 从Content-Type中取出mimeType，去掉参数部分，只返回图片和视频类型
+     */
+    public static String fromContentType(String contentType) {
+        if (contentType == null) return null;
+        int end = contentType.indexOf(';');
+        String mimeType = (end >= 0 ? contentType.substring(0, end) : contentType).trim().toLowerCase(Locale.ROOT);
+        return isMediaMimeType(mimeType) ? mimeType : null;
+    }
+
+    /**
+     * 是否为需要通知图库的图片或视频类型
+     */
+    public static boolean isMediaMimeType(String mimeType) {
+        return mimeType != null && (mimeType.startsWith("image/") || mimeType.startsWith("video/"));
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, int position, byte[] magic) {
+        if (position + magic.length > length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (data[offset + position + i] != magic[i]) return false;
+        }
+        return true;
+    }
+
+}
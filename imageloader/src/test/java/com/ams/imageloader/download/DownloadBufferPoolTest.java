@@ -0,0 +1,173 @@
+package com.ams.imageloader.download;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * author: Ams
+ * Date: 2019/5/15
+ * Description: 下载缓冲区池测试，检查缓冲区档位的选择以及归还后的复用
+ */
+public class DownloadBufferPoolTest {
+
+    private static final long TOTAL_BYTES = 32 * 1024 * 1024;
+
+    @Test
+    public void slowNetworkUsesSmallestBuffer() {
+        // 100ms只读到1K
+        assertEquals(DownloadBufferPool.MIN_SIZE, DownloadBufferPool.sizeFor(1024, 100));
+        assertEquals(DownloadBufferPool.MIN_SIZE, DownloadBufferPool.sizeFor(16 * 1024, 1000));
+    }
+
+    @Test
+    public void fastNetworkUsesLargestBuffer() {
+        // 10ms读满256K，约25MB/s
+        assertEquals(DownloadBufferPool.MAX_SIZE, DownloadBufferPool.sizeFor(256 * 1024, 10));
+        // 耗时为0时不会除以0
+        assertEquals(DownloadBufferPool.MAX_SIZE, DownloadBufferPool.sizeFor(16 * 1024, 0));
+    }
+
+    @Test
+    public void sizeTargetsHundredMillisOfData() {
+        // 1MB/s时100ms约100K，取不小于它的档位128K
+        assertEquals(128 * 1024, DownloadBufferPool.sizeFor(16 * 1024, 16));
+        // 320K/s时100ms为32K
+        assertEquals(32 * 1024, DownloadBufferPool.sizeFor(32 * 1024, 100));
+    }
+
+    @Test
+    public void sizesAreTiers() {
+        for (int bytes = 1; bytes <= DownloadBufferPool.MAX_SIZE; bytes *= 3) {
+            for (long elapsed = 0; elapsed <= 2000; elapsed += 37) {
+                int size = DownloadBufferPool.sizeFor(bytes, elapsed);
+                assertTrue(size >= DownloadBufferPool.MIN_SIZE && size <= DownloadBufferPool.MAX_SIZE);
+                assertEquals(0, size & (size - 1));
+            }
+        }
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        int size = 64 * 1024;
+        List<ByteBuffer> held = drain(size);
+        ByteBuffer buffer = DownloadBufferPool.acquire(size);
+        assertEquals(size, buffer.capacity());
+        buffer.position(100);
+        buffer.limit(200);
+        DownloadBufferPool.release(buffer);
+        ByteBuffer reused = DownloadBufferPool.acquire(size);
+        assertSame(buffer, reused);
+        // 取出时已重置
+        assertEquals(0, reused.position());
+        assertEquals(size, reused.limit());
+        DownloadBufferPool.release(reused);
+        releaseAll(held);
+    }
+
+    @Test
+    public void poolIsBounded() {
+        int size = 128 * 1024;
+        List<ByteBuffer> held = drain(size);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        Set<ByteBuffer> released = newIdentitySet();
+        for (int i = 0; i < 16; i++) {
+            ByteBuffer buffer = DownloadBufferPool.acquire(size);
+            buffers.add(buffer);
+            released.add(buffer);
+        }
+        releaseAll(buffers);
+        Set<ByteBuffer> reused = newIdentitySet();
+        for (int i = 0; i < 16; i++) {
+            ByteBuffer buffer = DownloadBufferPool.acquire(size);
+            if (released.contains(buffer)) reused.add(buffer);
+        }
+        // 每档最多保留几个，多出的交给GC
+        assertTrue(reused.size() > 0 && reused.size() < 16);
+        releaseAll(held);
+    }
+
+    /**
+     * 慢速网络下保持最小缓冲区，不多占内存
+     */
+    @Test
+    public void slowNetworkKeepsSmallBuffers() {
+        assertEquals(DownloadBufferPool.MIN_SIZE, simulate(64 * 1024));
+    }
+
+    /**
+     * 下载循环中缓冲区用完归还，多次下载后分配的缓冲区数量不再增长
+     */
+    @Test
+    public void repeatedDownloadsDoNotAllocate() {
+        Set<ByteBuffer> seen = newIdentitySet();
+        for (int i = 0; i < 20; i++) {
+            simulate(2 * 1024 * 1024, seen);
+        }
+        int afterWarmUp = seen.size();
+        for (int i = 0; i < 200; i++) {
+            simulate(2 * 1024 * 1024, seen);
+        }
+        assertEquals(afterWarmUp, seen.size());
+    }
+
+    private static int simulate(long bytesPerSecond) {
+        return simulate(bytesPerSecond, DownloadBufferPoolTest.<ByteBuffer>newIdentitySet());
+    }
+
+    /**
+     * 按OkHttpDownloadManager.downloadRange的方式取用缓冲区：按给定网速计算每次填满的耗时，再调整大小
+     * 返回用到的最大缓冲区，取到的缓冲区记录在seen中
+     */
+    private static int simulate(long bytesPerSecond, Set<ByteBuffer> seen) {
+        int maxSize = 0;
+        ByteBuffer buffer = DownloadBufferPool.acquire(DownloadBufferPool.MIN_SIZE);
+        seen.add(buffer);
+        long remaining = TOTAL_BYTES;
+        while (remaining > 0) {
+            int filled = (int) Math.min(buffer.capacity(), remaining);
+            long elapsed = filled * 1000L / bytesPerSecond;
+            maxSize = Math.max(maxSize, buffer.capacity());
+            remaining -= filled;
+            int size = DownloadBufferPool.sizeFor(filled, elapsed);
+            if (size != buffer.capacity()) {
+                DownloadBufferPool.release(buffer);
+                buffer = DownloadBufferPool.acquire(size);
+                seen.add(buffer);
+            }
+        }
+        DownloadBufferPool.release(buffer);
+        return maxSize;
+    }
+
+    /**
+     * 取空池中的缓冲区，测试不受其他测试归还的缓冲区影响
+     */
+    private static List<ByteBuffer> drain(int size) {
+        List<ByteBuffer> held = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            held.add(DownloadBufferPool.acquire(size));
+        }
+        return held;
+    }
+
+    private static void releaseAll(List<ByteBuffer> buffers) {
+        for (ByteBuffer buffer : buffers) {
+            DownloadBufferPool.release(buffer);
+        }
+    }
+
+    private static <T> Set<T> newIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.ams.imageloader.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * author: Ams
+ * Date: 2019/5/27
+ * Description: 重试策略测试，用MockWebServer模拟连接被断开，检查OkHttp实际抛出的异常能被识别为可重试
+ */
+public class RetryPolicyTest {
+
+    private MockWebServer server;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient.Builder()
+                .retryOnConnectionFailure(false)
+                .readTimeout(2, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void retryableStatusCodes() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.isRetryable(new HttpStatusException(408, -1)));
+        assertTrue(policy.isRetryable(new HttpStatusException(429, -1)));
+        assertTrue(policy.isRetryable(new HttpStatusException(500, -1)));
+        assertTrue(policy.isRetryable(new HttpStatusException(503, -1)));
+        assertFalse(policy.isRetryable(new HttpStatusException(403, -1)));
+        assertFalse(policy.isRetryable(new HttpStatusException(404, -1)));
+    }
+
+    @Test
+    public void networkErrorsAreRetryable() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.isRetryable(new ConnectException("failed to connect")));
+        assertTrue(policy.isRetryable(new SocketTimeoutException("timeout")));
+        // OkHttp把底层异常包装成普通的IOException
+        assertTrue(policy.isRetryable(new IOException("unexpected end of stream", new EOFException())));
+    }
+
+    @Test
+    public void localErrorsAreNotRetryable() {
+        RetryPolicy policy = new RetryPolicy();
+        assertFalse(policy.isRetryable(new FileNotFoundException("/readonly/a.jpg (Permission denied)")));
+        assertFalse(policy.isRetryable(new IOException("write failed: ENOSPC (No space left on device)")));
+        assertFalse(policy.isRetryable(new IOException("rename temp file failed")));
+        assertFalse(policy.isRetryable(new DownloadVerifier.ChecksumException()));
+    }
+
+    @Test
+    public void delayGrowsWithJitterAndCap() {
+        RetryPolicy policy = new RetryPolicy(10, 1000, 8000);
+        for (int i = 0; i < 100; i++) {
+            assertInRange(policy.getDelay(0, null), 500, 1000);
+            assertInRange(policy.getDelay(1, null), 1000, 2000);
+            assertInRange(policy.getDelay(2, null), 2000, 4000);
+            assertInRange(policy.getDelay(3, null), 4000, 8000);
+            assertInRange(policy.getDelay(9, null), 4000, 8000);
+            assertInRange(policy.getDelay(60, null), 4000, 8000);
+        }
+    }
+
+    @Test
+    public void delayHonorsRetryAfterUpToCap() {
+        RetryPolicy policy = new RetryPolicy(3, 1000, 8000);
+        assertTrue(policy.getDelay(0, new HttpStatusException(503, 5000)) >= 5000);
+        assertInRange(policy.getDelay(0, new HttpStatusException(503, 60000)), 8000, 8000);
+    }
+
+    @Test
+    public void disconnectBeforeResponseIsRetryable() {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        assertTrue(new RetryPolicy().isRetryable(executeAndCatch()));
+    }
+
+    @Test
+    public void disconnectDuringBodyIsRetryable() {
+        server.enqueue(new MockResponse().setBody(new String(new char[64 * 1024]).replace('\0', 'a'))
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+        assertTrue(new RetryPolicy().isRetryable(executeAndCatch()));
+    }
+
+    @Test
+    public void connectionRefusedIsRetryable() throws IOException {
+        // 取一个空闲端口后关闭，连接会被拒绝
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        Exception error = null;
+        try {
+            client.newCall(new Request.Builder().url("http://127.0.0.1:" + port + "/").build()).execute().close();
+        } catch (IOException e) {
+            error = e;
+        }
+        assertTrue(new RetryPolicy().isRetryable(error));
+    }
+
+    private Exception executeAndCatch() {
+        try {
+            Response response = client.newCall(new Request.Builder().url(server.url("/")).build()).execute();
+            try {
+                response.body().string();
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            return e;
+        }
+        throw new AssertionError("expected failure");
+    }
+
+    private static void assertInRange(long value, long min, long max) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+
+}